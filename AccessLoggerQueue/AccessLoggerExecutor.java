@@ -0,0 +1,155 @@
+package com.cwilliams.commerce;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the AccessLoggerQueue's drain loop, and the chunk, replay and spill tasks it hands off.
+ *
+ * In VIRTUAL mode every task gets its own virtual thread, so blocking JDBC and file I/O is cheap
+ *   to fan out.  In PLATFORM mode tasks run on a pool of ordinary threads.  Either way, the number
+ *   of tasks using the database at once is bounded by the connection permits, not by threads.
+ * Virtual threads are looked up reflectively, so this still runs on JVMs without them, falling
+ *   back to PLATFORM mode.
+ * Locks held across database or file I/O on these threads are ReentrantLocks rather than monitors,
+ *   since a virtual thread blocking inside synchronized pins its carrier thread.
+ * @author corey
+ *
+ */
+public class AccessLoggerExecutor {
+
+	public static enum Mode {
+		PLATFORM,
+		VIRTUAL
+	}
+
+	private final static Log logger = LogFactory.getLog(AccessLoggerExecutor.class);
+
+	private final Mode mode;
+	private final ThreadFactory threadFactory;
+	private final ExecutorService taskExecutor;
+	private final Semaphore connectionPermits;
+	private final int maxConnections;
+
+	/**
+	 * @param requestedMode - VIRTUAL falls back to PLATFORM if this JVM doesn't have virtual threads
+	 * @param maxConnections - how many tasks may hold a database connection at once
+	 */
+	public AccessLoggerExecutor(Mode requestedMode, int maxConnections){
+		if(maxConnections < 1){
+			throw new IllegalArgumentException("AccessLoggerExecutor needs at least one connection");
+		}
+		ThreadFactory factory = null;
+		ExecutorService executor = null;
+		if(requestedMode == Mode.VIRTUAL){
+			try{
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "access-logger-", 0L);
+				factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+				Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+				executor = (ExecutorService) perTask.invoke(null, factory);
+			}catch(Exception e){
+				//No virtual threads on this JVM (or they're still a preview feature)
+				logger.warn(String.format("Virtual threads not available, using platform threads for the access logger: %s", e));
+				factory = null;
+				executor = null;
+			}
+		}
+		if(factory == null){
+			final AtomicInteger threadCount = new AtomicInteger();
+			factory = new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r){
+					return new Thread(r, "access-logger-" + threadCount.getAndIncrement());
+				}
+			};
+			executor = Executors.newCachedThreadPool(factory);
+			this.mode = Mode.PLATFORM;
+		}else{
+			this.mode = Mode.VIRTUAL;
+		}
+		this.threadFactory = factory;
+		this.taskExecutor = executor;
+		this.maxConnections = maxConnections;
+		this.connectionPermits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * The mode actually in use, which may be PLATFORM even if VIRTUAL was requested
+	 */
+	public Mode getMode(){
+		return mode;
+	}
+
+	public int getMaxConnections(){
+		return maxConnections;
+	}
+
+	/**
+	 * Creates an unstarted thread of this executor's kind, for long running loops
+	 * @param r
+	 * @return
+	 */
+	public Thread newThread(Runnable r){
+		return threadFactory.newThread(r);
+	}
+
+	/**
+	 * Runs task on its own thread (virtual) or a pooled thread (platform)
+	 * @param task
+	 */
+	public void execute(Runnable task){
+		taskExecutor.execute(task);
+	}
+
+	/**
+	 * Blocks until a database connection permit is free.  Every acquire must be matched with
+	 *   a {@link releaseConnection}, normally in a finally block.
+	 * @throws InterruptedException
+	 */
+	public void acquireConnection() throws InterruptedException{
+		connectionPermits.acquire();
+	}
+
+	public boolean tryAcquireConnection(){
+		return connectionPermits.tryAcquire();
+	}
+
+	public void releaseConnection(){
+		connectionPermits.release();
+	}
+
+	/**
+	 * Number of connection permits in use right now
+	 */
+	public int getConnectionsInUse(){
+		return maxConnections - connectionPermits.availablePermits();
+	}
+
+	/**
+	 * Waits until no task holds a connection permit
+	 * @param timeoutMs
+	 * @return false if some were still held after timeoutMs
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeoutMs) throws InterruptedException{
+		if(!connectionPermits.tryAcquire(maxConnections, Math.max(0, timeoutMs), TimeUnit.MILLISECONDS)){
+			return false;
+		}
+		connectionPermits.release(maxConnections);
+		return true;
+	}
+
+	public void shutdown(){
+		taskExecutor.shutdown();
+	}
+}
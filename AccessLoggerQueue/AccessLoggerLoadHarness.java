@@ -0,0 +1,406 @@
+package com.cwilliams.commerce;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Load and soak test for the AccessLoggerQueue, running EnqueueAccess -> drainQueue -> processViews
+ *   -> handleErrorFile end to end against a {@link StandInDatabase} and a stub mailer.
+ *
+ * Run with key=value arguments, for example:
+ *   java com.cwilliams.commerce.AccessLoggerLoadHarness producers=8 rate=2000 duration=60 outageStart=20 outageLength=10
+ *
+ *   producers            - producer threads (8)
+ *   rate                 - views per second per producer, 0 for as fast as possible (1000)
+ *   users                - distinct user ids views are spread over, fewer repeat IP accesses more (50000)
+ *   duration             - seconds of load (30)
+ *   commitDelayMs        - added to every commit (2)
+ *   commitFailureRate    - chance any commit fails (0)
+ *   dropRate             - chance any statement drops its connection (0)
+ *   outageStart          - seconds in when every commit starts failing, -1 for none (-1)
+ *   outageLength         - seconds the outage lasts (0)
+ *   mode                 - PLATFORM or VIRTUAL (PLATFORM)
+ *   connections          - connection permits (4)
+ *   wal                  - write ahead log directory, none if not given
+ *   balanceCache         - true to enable the entitlement balance cache (false)
+ *   aggregate            - true to enable view aggregation (false)
+ *   ipCoalesceMs         - IP_ACCESSES coalescing window, 0 for no coalescing (0)
+ *   ipHits               - true to write hit counts for coalesced IP accesses (false)
+ *   minChunk / maxChunk  - bounds for the adaptive chunk size (10 / 500)
+ *   targetCommitMs       - commit time chunks are sized for (100)
+ *   checks               - true to run the {@link AccessLoggerSelfCheck} checks before the load,
+ *                          only to run just those (false)
+ *   seed                 - random seed for the checks (the current time)
+ *
+ * Reports throughput, enqueue to commit/spill latency percentiles, peak heap, and how long it took
+ *   after the outage for the error file to be replayed.  The queue is static, so it's one run per JVM.
+ * Exits with status 1 if any of the checks failed.
+ * @author corey
+ *
+ */
+public class AccessLoggerLoadHarness {
+	private static long DRAIN_TIMEOUT_MS = 300000;
+	private static long REPORT_INTERVAL_MS = 5000;
+
+	/**
+	 * Log scale latency histogram, in microseconds, accurate to about 6%
+	 */
+	static class LatencyHistogram{
+		private final AtomicLongArray buckets = new AtomicLongArray(64 * 16);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		static int bucketFor(long value){
+			if(value < 16){
+				return (int) Math.max(0, value);
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			return (exponent - 3) * 16 + (int) ((value >>> (exponent - 4)) & 15);
+		}
+
+		static long lowestValueIn(int bucket){
+			if(bucket < 32){
+				return bucket;
+			}
+			int exponent = bucket / 16 + 3;
+			return (long) (16 + bucket % 16) << (exponent - 4);
+		}
+
+		void record(long micros){
+			buckets.incrementAndGet(bucketFor(micros));
+			count.incrementAndGet();
+			long curMax = max.get();
+			while(micros > curMax && !max.compareAndSet(curMax, micros)){
+				curMax = max.get();
+			}
+		}
+
+		long getCount(){
+			return count.get();
+		}
+
+		long getMax(){
+			return max.get();
+		}
+
+		long percentile(double percent){
+			long total = count.get();
+			if(total == 0){
+				return 0;
+			}
+			long target = (long) Math.ceil(total * percent / 100.0);
+			long seen = 0;
+			for(int i = 0; i < buckets.length(); i++){
+				seen += buckets.get(i);
+				if(seen >= target){
+					return lowestValueIn(i);
+				}
+			}
+			return max.get();
+		}
+	}
+
+	private final Map<String, String> options;
+	private final StandInDatabase database = new StandInDatabase();
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong committed = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicInteger mailsSent = new AtomicInteger();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private long peakHeap = 0;
+	private volatile boolean running = true;
+
+	private final PrintStream report;
+	private int users = 50000;
+
+	AccessLoggerLoadHarness(Map<String, String> options, PrintStream report){
+		this.options = options;
+		this.report = report;
+	}
+
+	private String option(String key, String defaultValue){
+		String value = options.get(key);
+		return (value != null) ? value : defaultValue;
+	}
+	private long longOption(String key, long defaultValue){
+		return Long.parseLong(option(key, Long.toString(defaultValue)));
+	}
+	private double doubleOption(String key, double defaultValue){
+		return Double.parseDouble(option(key, Double.toString(defaultValue)));
+	}
+
+	private ProductView randomView(){
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		ProductView view = new ProductView();
+		int userID = random.nextInt(users);
+		view.setEntitlementID(random.nextInt(10000))
+			.setProductID(random.nextInt(500))
+			.setUserID(userID)
+			.setDebitTime(System.currentTimeMillis());
+		//Each user comes from one of a couple of addresses, so IP accesses repeat like they would live
+		view.setIPv4Address(0x0A000000 | (userID << 1) | random.nextInt(2));
+		Map<String, String> data = new HashMap<String, String>();
+		data.put("track", "T" + random.nextInt(40));
+		data.put("race", Integer.toString(random.nextInt(12) + 1));
+		data.put("date", "20261019");
+		view.setData(data);
+		return view;
+	}
+
+	private class Producer implements Runnable{
+		private final long intervalNanos;
+
+		Producer(long rate){
+			intervalNanos = (rate > 0) ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+		}
+
+		@Override
+		public void run(){
+			long nextSend = System.nanoTime();
+			while(running){
+				if(intervalNanos > 0){
+					long wait = nextSend - System.nanoTime();
+					if(wait > 0){
+						LockSupport.parkNanos(wait);
+					}
+					nextSend += intervalNanos;
+				}
+				final long start = System.nanoTime();
+				CompletableFuture<AccessLoggerQueue.Durability> future;
+				try{
+					future = AccessLoggerQueue.enqueueAsync(randomView());
+				}catch(IllegalStateException e){
+					rejected.incrementAndGet();
+					continue;
+				}
+				enqueued.incrementAndGet();
+				future.whenComplete(new BiConsumer<AccessLoggerQueue.Durability, Throwable>(){
+					@Override
+					public void accept(AccessLoggerQueue.Durability durability, Throwable error){
+						latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+						if(error != null){
+							failed.incrementAndGet();
+						}else if(durability == AccessLoggerQueue.Durability.SPILLED){
+							spilled.incrementAndGet();
+						}else{
+							committed.incrementAndGet();
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private void sampleHeap(){
+		peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+	}
+
+	private boolean errorFileEmpty(File errorFile){
+		return errorFile.length() == 0 && !new File(errorFile.getPath() + ".replaying").exists();
+	}
+
+	/**
+	 * Runs the checks if asked for, then the load unless checks=only
+	 * @return false if any check failed
+	 */
+	boolean run() throws Exception{
+		String checks = option("checks", "false");
+		if(checks.equals("true") || checks.equals("only")){
+			int checkFailures = new AccessLoggerSelfCheck(report, longOption("seed", System.currentTimeMillis())).run();
+			if(checkFailures != 0){
+				report.format("%d self checks failed%n", checkFailures);
+			}
+			if(checks.equals("only")){
+				return checkFailures == 0;
+			}
+			report.println();
+			runLoad();
+			return checkFailures == 0;
+		}
+		runLoad();
+		return true;
+	}
+
+	private void runLoad() throws Exception{
+		int producers = (int) longOption("producers", 8);
+		long rate = longOption("rate", 1000);
+		users = (int) longOption("users", 50000);
+		long durationMs = longOption("duration", 30) * 1000;
+		long outageStartMs = longOption("outageStart", -1) * 1000;
+		long outageEndMs = outageStartMs + longOption("outageLength", 0) * 1000;
+		database.setCommitDelayMs(longOption("commitDelayMs", 2));
+		database.setCommitFailureRate(doubleOption("commitFailureRate", 0));
+		database.setConnectionDropRate(doubleOption("dropRate", 0));
+
+		File errorFile = File.createTempFile("accessLoggerLoad", ".errors");
+		errorFile.delete();
+		AccessLoggerQueue.useStandIns(database.getDataSource(), new AccessLoggerQueue.ErrorMailer(){
+			@Override
+			public void sendMessage(String to, String subject, String body){
+				mailsSent.incrementAndGet();
+			}
+		}, errorFile.getAbsolutePath());
+		AccessLoggerQueue.configureExecutor(AccessLoggerExecutor.Mode.valueOf(option("mode", "PLATFORM")),
+				(int) longOption("connections", 4));
+		if(options.containsKey("wal")){
+			AccessLoggerQueue.enableWriteAheadLog(options.get("wal"));
+		}
+		if(Boolean.parseBoolean(option("balanceCache", "false"))){
+			AccessLoggerQueue.enableBalanceCache();
+		}
+		if(Boolean.parseBoolean(option("aggregate", "false"))){
+			AccessLoggerQueue.enableViewAggregation();
+		}
+		AccessLoggerQueue.configureChunkSizing((int) longOption("minChunk", 10), (int) longOption("maxChunk", 500),
+				longOption("targetCommitMs", 100));
+		if(longOption("ipCoalesceMs", 0) > 0){
+			boolean ipHits = Boolean.parseBoolean(option("ipHits", "false"));
+			if(ipHits){
+				//So hit updates for rows still in the error file come back as 0 rows, and get retried
+				database.setRowKey("IP_ACCESSES", "IP_ADDRESS", "USER_ID", "WINDOW_START", "WRITER_ID");
+			}
+			AccessLoggerQueue.enableIpCoalescing(longOption("ipCoalesceMs", 0), ipHits);
+		}
+		AccessLoggerQueue.startHandler();
+		report.format("Executor mode: %s, %d connections, %d producers at %s views/s each, for %ds%n",
+				AccessLoggerQueue.getExecutor().getMode(), AccessLoggerQueue.getExecutor().getMaxConnections(),
+				producers, (rate > 0) ? Long.toString(rate) : "unlimited", durationMs / 1000);
+
+		Thread[] threads = new Thread[producers];
+		for(int i = 0; i < producers; i++){
+			threads[i] = new Thread(new Producer(rate), "load-producer-" + i);
+			threads[i].start();
+		}
+
+		long start = System.currentTimeMillis();
+		long lastReport = start;
+		long lastCommitted = 0;
+		boolean outageRunning = false;
+		long outageEndedAt = -1;
+		long recoveredAt = -1;
+		long loadMs = 0;
+		long committedDuringLoad = 0;
+		long enqueuedDuringLoad = 0;
+		while(true){
+			long now = System.currentTimeMillis();
+			long elapsed = now - start;
+			if(running && elapsed >= durationMs){
+				running = false;
+				for(int i = 0; i < threads.length; i++){
+					threads[i].join();
+				}
+				loadMs = System.currentTimeMillis() - start;
+				committedDuringLoad = committed.get();
+				enqueuedDuringLoad = enqueued.get();
+				report.format("Producers stopped after %dms, waiting for the queue to drain%n", elapsed);
+			}
+			if(!outageRunning && outageEndedAt < 0 && outageStartMs >= 0 && elapsed >= outageStartMs){
+				outageRunning = true;
+				database.setOutage(true);
+				report.format("Outage started at %dms%n", elapsed);
+			}
+			if(outageRunning && elapsed >= outageEndMs){
+				outageRunning = false;
+				database.setOutage(false);
+				outageEndedAt = now;
+				report.format("Outage ended at %dms%n", elapsed);
+			}
+			if(outageEndedAt >= 0 && recoveredAt < 0 && errorFileEmpty(errorFile)){
+				recoveredAt = now;
+			}
+			sampleHeap();
+			if(now - lastReport >= REPORT_INTERVAL_MS){
+				long curCommitted = committed.get();
+				report.format("%6ds enqueued=%d committed=%d spilled=%d queued=%d commit rate=%.0f/s chunk=%d heap=%dMB%n",
+						elapsed / 1000, enqueued.get(), curCommitted, spilled.get(), AccessLoggerQueue.getSize(),
+						(curCommitted - lastCommitted) * 1000.0 / (now - lastReport), AccessLoggerQueue.getCurrentChunkSize(),
+						memory.getHeapMemoryUsage().getUsed() >> 20);
+				lastReport = now;
+				lastCommitted = curCommitted;
+			}
+			boolean settled = latencies.getCount() == enqueued.get() && errorFileEmpty(errorFile) && !outageRunning;
+			if(!running && (settled || elapsed - durationMs > DRAIN_TIMEOUT_MS)){
+				break;
+			}
+			Thread.sleep(10);
+		}
+		long totalMs = System.currentTimeMillis() - start;
+		//Writes out the open rollup windows, same as the shutdown hook would
+		long stopStart = System.currentTimeMillis();
+		AccessLoggerQueue.stopHandler(DRAIN_TIMEOUT_MS);
+		long stopMs = System.currentTimeMillis() - stopStart;
+
+		report.format("%n---- Access logger load results ----%n");
+		report.format("Views enqueued:            %d (rejected %d)%n", enqueued.get(), rejected.get());
+		report.format("Committed / spilled / lost: %d / %d / %d%n", committed.get(), spilled.get(), failed.get());
+		report.format("ENTITLEMENTS_LOG rows:     %d%n", database.getCommittedRows("ENTITLEMENTS_LOG"));
+		report.format("IP_ACCESSES rows:          %d%n", database.getCommittedRows("IP_ACCESSES"));
+		report.format("ENTITLEMENTS_ROLLUP rows:  %d%n", database.getCommittedRows("ENTITLEMENTS_ROLLUP"));
+		report.format("IP_ACCESSES hit updates:   %d (%d matched no row)%n", database.getUpdatedRows("IP_ACCESSES"),
+				database.getUnmatchedUpdates());
+		//Only the load period, the drain afterwards would drag the rate down by however long it took
+		report.format("Throughput:                %.0f views/s committed, %.0f views/s enqueued, over %dms of load%n",
+				committedDuringLoad * 1000.0 / loadMs, enqueuedDuringLoad * 1000.0 / loadMs, loadMs);
+		report.format("Drain after load:          %dms (%dms end to end), stopHandler took %dms%n", totalMs - loadMs, totalMs, stopMs);
+		report.format("Enqueue to durable (us):   p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+				latencies.percentile(50), latencies.percentile(90), latencies.percentile(99),
+				latencies.percentile(99.9), latencies.getMax());
+		report.format("Commits / failed / rollbacks / dropped connections: %d / %d / %d / %d%n",
+				database.getCommits(), database.getFailedCommits(), database.getRollbacks(), database.getDroppedConnections());
+		report.format("Peak heap used:            %dMB%n", peakHeap >> 20);
+		report.format("Chunk sizing:              %s%n", AccessLoggerQueue.getChunkSizer());
+		report.format("Error mails sent:          %d%n", mailsSent.get());
+		if(outageEndedAt >= 0){
+			if(recoveredAt >= 0){
+				report.format("Spill replay recovery:     %dms after the outage ended%n", recoveredAt - outageEndedAt);
+			}else{
+				report.format("Spill replay recovery:     error file still not replayed%n");
+			}
+		}
+		if(!errorFileEmpty(errorFile)){
+			report.format("Error file left behind:    %s%n", errorFile.getAbsolutePath());
+		}
+	}
+
+	public static void main(String[] args) throws Exception{
+		Map<String, String> options = new HashMap<String, String>();
+		for(int i = 0; i < args.length; i++){
+			int eq = args[i].indexOf('=');
+			if(eq <= 0){
+				System.err.format("Ignoring argument, expected key=value: %s%n", args[i]);
+				continue;
+			}
+			options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		//The queue prints a line for every view, and a stack trace for every injected fault,
+		//  keep that out of the report
+		PrintStream report = System.out;
+		PrintStream discard = new PrintStream(new OutputStream(){
+			@Override
+			public void write(int b){}
+			@Override
+			public void write(byte[] b, int off, int len){}
+		});
+		System.setOut(discard);
+		System.setErr(discard);
+		boolean passed = new AccessLoggerLoadHarness(options, report).run();
+		//The executor's pooled threads never exit on their own
+		System.exit(passed ? 0 : 1);
+	}
+}
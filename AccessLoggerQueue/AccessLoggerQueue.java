@@ -15,11 +15,18 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,17 +37,93 @@ import com.cwilliams.commerce.mail.SMMailer;
 import com.cwilliams.commerce.ProductView;
 
 public class AccessLoggerQueue {
+	//Starting chunk size, adjusted from there by the chunk sizer within MIN/MAX_CHUNK_SIZE
 	private static int CHUNK_SIZE = 50;
+	private static int MIN_CHUNK_SIZE = 10;
+	private static int MAX_CHUNK_SIZE = 500;
+	private static int CHUNK_SIZE_STEP = 10;
+	private static long TARGET_COMMIT_MS = 100;
 	private static String ERROR_FILE = "/tmp/entitlementErrors";
 	private static String ERROR_EMAIL = "errors@cwilliams.com";
+	//The error file is moved aside to this name while it is being replayed
+	private static final String REPLAY_SUFFIX = ".replaying";
+	private static AccessLoggerExecutor.Mode EXECUTOR_MODE = AccessLoggerExecutor.Mode.PLATFORM;
+	private static int MAX_CONNECTIONS = 1;
+	//How long the shutdown hook waits for the queue to drain
+	private static long SHUTDOWN_TIMEOUT_MS = 30000;
 	
-	private static BlockingQueue<ProductView> accessQueue;
+	private volatile static BlockingQueue<ProductView> accessQueue;
 	
 	protected volatile static Thread queueHandler;
+	//Set by stopHandler, the drain loop finishes up and exits once it sees it
+	private volatile static boolean stopRequested = false;
+	private volatile static long stopDeadline = 0;
+	private static Thread shutdownHook;
 	private volatile static boolean errorEmailSent = false;
+	//Only set when the write ahead log is enabled, see enableWriteAheadLog
+	private volatile static AccessWriteAheadLog writeAheadLog;
+	//Only set when the balance cache is enabled, see enableBalanceCache
+	private volatile static EntitlementBalanceCache balanceCache;
+	//Only set when view aggregation is enabled, see enableViewAggregation
+	private volatile static ViewAggregator viewAggregator;
+	//Only set when IP access coalescing is enabled, see enableIpCoalescing
+	private volatile static IpAccessCoalescer ipCoalescer;
+	//Sizes chunks from their commit latency and failures, see configureChunkSizing
+	private volatile static AdaptiveChunkSizer chunkSizer;
+	//Runs the drain loop and the chunk/replay/spill tasks, see configureExecutor
+	private volatile static AccessLoggerExecutor executor;
+	//Guards the error file, chunks can be spilled from several tasks at once
+	private final static ReentrantLock errorFileLock = new ReentrantLock();
+	//Keeps write ahead log order matching queue order, without holding the class lock across fsyncs
+	private final static ReentrantLock enqueueLock = new ReentrantLock();
+	//Guards lazy creation of the queue and executor, kept off the class lock the config methods hold
+	private final static Object initLock = new Object();
+	private final static AtomicBoolean errorFileReplaying = new AtomicBoolean(false);
+	//Stand-ins for SMDBPool and SMMailer, only set by load tests, see useStandIns
+	private volatile static DataSource dataSourceOverride;
+	private volatile static ErrorMailer errorMailerOverride;
 	
 	private final static Log logger = LogFactory.getLog(AccessLoggerQueue.class);
 	
+	/**
+	 * Sends the admin emails, normally just {@link SMMailer}
+	 */
+	public static interface ErrorMailer {
+		void sendMessage(String to, String subject, String body);
+	}
+	
+	/**
+	 * How a view queued with {@link enqueueAsync} was made durable
+	 */
+	public static enum Durability {
+		/** The view's batch was committed to the database */
+		COMMITTED,
+		/** The view's batch failed, and was written and synced to the error file, to be retried later */
+		SPILLED
+	}
+	
+	/**
+	 * Gets a connection from SMDBPool, or from the stand-in data source when one is set
+	 * @return
+	 * @throws SQLException
+	 */
+	protected static Connection getConnection() throws SQLException{
+		DataSource override = dataSourceOverride;
+		if(override != null){
+			return override.getConnection();
+		}
+		return SMDBPool.getInstance().getDataSource().getConnection();
+	}
+	
+	private static void sendErrorMail(String to, String subject, String body){
+		ErrorMailer override = errorMailerOverride;
+		if(override != null){
+			override.sendMessage(to, subject, body);
+		}else{
+			SMMailer.sendMessage(to, subject, body);
+		}
+	}
+	
 	/**
 	 * Primarily for testing, to make sure that the queue is being processed properly
 	 * @return
@@ -142,8 +225,28 @@ public class AccessLoggerQueue {
 	 * @param cause - Cause of the errors
 	 * @param views - Current chunk of views
 	 * @param errorFile - File path to write errors to
+	 * @return true if every view was written and synced to disk
 	 */
-	protected static void writeViewsToErrorLog(Throwable cause, Vector<ProductView> views, String errorFile){
+	protected static boolean writeViewsToErrorLog(Throwable cause, Vector<ProductView> views, String errorFile){
+		return writeViewsToErrorLog(cause, views, errorFile, null);
+	}
+	
+	/**
+	 * Same as {@link #writeViewsToErrorLog(Throwable, Vector, String)}, with an extra comment line
+	 *   for the chunk, which must start with '#'
+	 * @param comment - extra comment, null for none
+	 */
+	protected static boolean writeViewsToErrorLog(Throwable cause, Vector<ProductView> views, String errorFile, String comment){
+		errorFileLock.lock();
+		try{
+			return writeViewsToErrorLogLocked(cause, views, errorFile, comment);
+		}finally{
+			errorFileLock.unlock();
+		}
+	}
+	
+	private static boolean writeViewsToErrorLogLocked(Throwable cause, Vector<ProductView> views, String errorFile, String comment){
+		boolean written = false;
 		File outFile = null;
 		FileOutputStream outStream = null;
 		try{
@@ -153,9 +256,13 @@ public class AccessLoggerQueue {
 			logger.error(String.format("Unable to Open error file: %s", (outFile != null) ? outFile.getAbsolutePath() : "null"));
 		}
 		if(outStream != null){
+			written = true;
 			Iterator<ProductView> viewIter = views.iterator();
 			try {
 				outStream.write(generateErrorMessageComment(cause).getBytes());
+				if(comment != null){
+					outStream.write((comment + "\n").getBytes());
+				}
 			} catch (IOException e1) {
 				logger.error(String.format("Error writing error message to file!"));
 				e1.printStackTrace();
@@ -167,27 +274,123 @@ public class AccessLoggerQueue {
 					outStream.write(curView.toCSV().getBytes());
 					outStream.flush();
 				} catch (IOException e) {
+					written = false;
 					logger.error(String.format("Error writing a view to file! view: %s", curView.toCSV()));
 					e.printStackTrace();
 				}
 			}
+			try {
+				//Make sure the views are on disk before anyone is told they were spilled
+				outStream.getFD().sync();
+			} catch (IOException e) {
+				written = false;
+				logger.error("Unable to sync error file to disk");
+				e.printStackTrace();
+			}
+			try {
+				outStream.close();
+			} catch (IOException e) {
+				logger.error("Unable to close error file");
+			}
+		}
+		return written;
+	}
+	
+	/**
+	 * Completes the durability futures of any views queued with {@link enqueueAsync}
+	 * @param views
+	 * @param durability
+	 */
+	private static void completeViews(Collection<ProductView> views, Durability durability){
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			CompletableFuture<Durability> future = curView.getDurabilityFuture();
+			if(future != null){
+				curView.setDurabilityFuture(null);
+				future.complete(durability);
+			}
+		}
+	}
+	
+	/**
+	 * Fails the durability futures of any views queued with {@link enqueueAsync}
+	 * @param views
+	 * @param cause
+	 */
+	private static void failViews(Collection<ProductView> views, Throwable cause){
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			CompletableFuture<Durability> future = curView.getDurabilityFuture();
+			if(future != null){
+				curView.setDurabilityFuture(null);
+				future.completeExceptionally(cause);
+			}
 		}
 	}
 	
+	private static final Comparator<ProductView> ENTITLEMENT_ORDER = new Comparator<ProductView>(){
+		@Override
+		public int compare(ProductView a, ProductView b){
+			if(a.getEntitlementID() != b.getEntitlementID()){
+				return (a.getEntitlementID() < b.getEntitlementID()) ? -1 : 1;
+			}
+			return (a.getUserID() < b.getUserID()) ? -1 : ((a.getUserID() == b.getUserID()) ? 0 : 1);
+		}
+	};
+	
 	protected static void processViews(Connection conn, Collection<ProductView> views) throws SQLException{
+		IpAccessCoalescer coalescer = ipCoalescer;
+		List<ProductView> ipCounted = null;
+		if(coalescer != null){
+			ipCounted = new ArrayList<ProductView>(views.size());
+		}
 		try{
 			conn.setAutoCommit(false);
+			EntitlementBalanceCache cache = balanceCache;
 			Iterator<ProductView> viewIter = views.iterator();
 			while(viewIter.hasNext()){
 				ProductView curView = viewIter.next();
 				writeEntLogEntry(conn, curView);
-				writeIpLogEntry(conn, curView);
-				decrementEntitlement(conn, curView);
+				if(coalescer == null){
+					writeIpLogEntry(conn, curView);
+				}else{
+					ipCounted.add(curView);
+					if(coalescer.shouldWrite(curView)){
+						coalescer.writeRow(conn, curView);
+					}
+				}
+			}
+			if(cache != null){
+				//One decrement per entitlement for the whole chunk
+				EntitlementBalanceCache.writeDecrements(conn, views);
+			}else{
+				//In entitlement/user order, so concurrent chunks lock ENTITLEMENTS rows in the same order
+				List<ProductView> byEntitlement = new ArrayList<ProductView>(views);
+				Collections.sort(byEntitlement, ENTITLEMENT_ORDER);
+				viewIter = byEntitlement.iterator();
+				while(viewIter.hasNext()){
+					decrementEntitlement(conn, viewIter.next());
+				}
 			}
 			conn.commit();
+			if(cache != null){
+				cache.release(views);
+			}
+			ViewAggregator aggregator = viewAggregator;
+			if(aggregator != null){
+				aggregator.addViews(views);
+			}
+			//Everyone waiting on this batch is released by the one commit
+			completeViews(views, Durability.COMMITTED);
 			conn.setAutoCommit(true);
 			views.clear();
 		}catch(SQLException e){
+			if(coalescer != null){
+				//The rows for these pairs never made it, so let the retry write them
+				coalescer.rollback(ipCounted);
+			}
 			//Attempt to rollback the connection before re-throwing the exception
 			conn.rollback();
 			conn.setAutoCommit(true);
@@ -196,24 +399,273 @@ public class AccessLoggerQueue {
 	}
 	
 	/**
-	 * Drains up to chunkSize items from the the queue, and sends them to {@link writeLogEntry}, 
+	 * Drains up to chunkSize items from the the queue, and hands them to a task that sends them to {@link processViews}, 
 	 * upon any error during processing the chunk, it then proceeds to send the current chunk to {@link writeViewsToErrorLog}
-	 * @param conn
+	 * Blocks while every database connection permit is in use.
 	 * @param chunkSize
+	 * @return true if any views were drained
+	 * @throws InterruptedException
 	 */
-	protected static void drainQueue(Connection conn, int chunkSize){
-		Vector<ProductView> views = new Vector<ProductView>(CHUNK_SIZE);
+	protected static boolean drainQueue(int chunkSize) throws InterruptedException{
+		AccessLoggerExecutor exec = getExecutor();
+		//Wait for a connection before draining, so the chunk fills up while we wait
+		exec.acquireConnection();
+		Vector<ProductView> views = new Vector<ProductView>(chunkSize);
 		int drained = 0;
 		
-		//Take up to CHUNK_SIZE elements out of the queue and process them
-		drained = getAccessQueue().drainTo(views, CHUNK_SIZE);
+		//Take up to chunkSize elements out of the queue and process them
+		drained = getAccessQueue().drainTo(views, chunkSize);
 		if(drained != 0){
 			System.out.format("Found some views to log: %d\n", drained);
+			dispatchViews(exec, views, chunkSize);
+			return true;
+		}
+		exec.releaseConnection();
+		return false;
+	}
+	
+	/**
+	 * Hands a chunk to a task on the executor, which processes or spills it and then releases
+	 *   the connection permit the caller acquired
+	 * @param exec
+	 * @param views
+	 * @param chunkSize - chunk size the views were drawn at, for the chunk sizer
+	 */
+	private static void dispatchViews(final AccessLoggerExecutor exec, final Vector<ProductView> views, final int chunkSize){
+		exec.execute(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					processOrSpillViews(views, chunkSize);
+				}finally{
+					exec.releaseConnection();
+				}
+			}
+		});
+	}
+	
+	private static long firstWalSequence(Collection<ProductView> views){
+		long firstSequence = 0;
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			long sequence = viewIter.next().getWalSequence();
+			if(sequence != 0 && (firstSequence == 0 || sequence < firstSequence)){
+				firstSequence = sequence;
+			}
+		}
+		return firstSequence;
+	}
+	
+	private static void closeConnection(Connection conn){
+		if(conn != null){
 			try{
-				processViews(conn, views);
-			}catch(Exception e){
-				System.out.format("Error logging view: %s\n", e.getMessage());
-				writeViewsToErrorLog(e, views, ERROR_FILE);
+				conn.close();
+			}catch(SQLException e){
+				logger.error("Unable to close access logger DB connection");
+			}
+		}
+	}
+	
+	/**
+	 * Processes a chunk of views on a connection from the pool, sending it to {@link writeViewsToErrorLog} on any error.
+	 * Once the chunk is either committed or spilled, it is marked as committed in the write ahead log,
+	 *   if it could be neither it stays uncommitted there, to be replayed on the next start
+	 * The commit time or failure is fed to the chunk sizer.
+	 * The caller must hold a connection permit
+	 * @param views
+	 * @param chunkSize - chunk size the views were drawn at
+	 */
+	private static void processOrSpillViews(Vector<ProductView> views, int chunkSize){
+		//processViews clears the chunk on success, so grab the sequences up front
+		long firstSequence = firstWalSequence(views);
+		long lastSequence = 0;
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			lastSequence = Math.max(lastSequence, viewIter.next().getWalSequence());
+		}
+		AdaptiveChunkSizer sizer = getChunkSizer();
+		int size = views.size();
+		//Whether the chunk ended up committed or spilled, only then can the WAL let go of it
+		boolean durable = true;
+		Connection conn = null;
+		try{
+			conn = getConnection();
+			//Timed from here, so waiting on the pool doesn't count as commit latency
+			long start = System.nanoTime();
+			processViews(conn, views);
+			sizer.recordCommit(chunkSize, size, System.nanoTime() - start);
+		}catch(Exception e){
+			sizer.recordFailure(chunkSize);
+			System.out.format("Error logging view: %s\n", e.getMessage());
+			EntitlementBalanceCache cache = balanceCache;
+			String spillComment = (cache != null) ? cache.getSpillComment(views) : null;
+			if(writeViewsToErrorLog(e, views, ERROR_FILE, spillComment)){
+				//Spilled views aren't decremented until the error file is replayed, so they
+				//  keep counting against the cached balance until then
+				if(spillComment != null){
+					cache.spill(views);
+				}else if(cache != null){
+					cache.discard(views);
+				}
+				completeViews(views, Durability.SPILLED);
+			}else{
+				//Nowhere durable for these apart from the WAL, so leave the chunk uncommitted there,
+				//  so it is replayed on the next start
+				durable = false;
+				if(cache != null){
+					cache.discard(views);
+				}
+				failViews(views, e);
+			}
+		}finally{
+			closeConnection(conn);
+		}
+		AccessWriteAheadLog wal = writeAheadLog;
+		if(wal != null && lastSequence != 0 && durable){
+			try{
+				wal.markCommitted(firstSequence, lastSequence);
+			}catch(IOException e){
+				logger.error("Unable to checkpoint access logger write ahead log, views may be replayed");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Processes any views that were left uncommitted in the write ahead log by the last run,
+	 *   in chunks, before anything new is drained from the queue
+	 * @throws InterruptedException
+	 */
+	protected static void replayWriteAheadLog() throws InterruptedException{
+		AccessWriteAheadLog wal = writeAheadLog;
+		if(wal == null){
+			return;
+		}
+		List<ProductView> recovered = wal.takeRecoveredViews();
+		if(!recovered.isEmpty()){
+			System.out.format("Replaying views from write ahead log: %d\n", recovered.size());
+		}
+		int chunkSize;
+		for(int i = 0; i < recovered.size(); i += chunkSize){
+			chunkSize = getChunkSizer().getChunkSize();
+			Vector<ProductView> views = new Vector<ProductView>(recovered.subList(i, Math.min(i + chunkSize, recovered.size())));
+			AccessLoggerExecutor exec = getExecutor();
+			exec.acquireConnection();
+			dispatchViews(exec, views, chunkSize);
+		}
+	}
+	
+	/**
+	 * Processes views on a connection from the pool, waiting for a connection permit first
+	 * @param views
+	 * @throws SQLException
+	 */
+	private static void processViewsWithPermit(Collection<ProductView> views) throws SQLException{
+		AccessLoggerExecutor exec = getExecutor();
+		try{
+			exec.acquireConnection();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for an access logger DB connection");
+		}
+		Connection conn = null;
+		try{
+			conn = getConnection();
+			processViews(conn, views);
+		}finally{
+			closeConnection(conn);
+			exec.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Replays the error file on its own task, unless there's nothing in it, or a replay is already running
+	 */
+	private static void scheduleErrorFileReplay(){
+		File errorFile = new File(ERROR_FILE);
+		File replayFile = new File(ERROR_FILE + REPLAY_SUFFIX);
+		if(errorFileReplaying.get() || (errorFile.length() == 0 && !replayFile.exists())){
+			//Nothing to retry, so there're no errors
+			if(!errorFileReplaying.get()){
+				clearErrorEmailSentFlag();
+			}
+			return;
+		}
+		getExecutor().execute(new Runnable(){
+			@Override
+			public void run(){
+				handleErrorFile(ERROR_FILE);
+			}
+		});
+	}
+	
+	/**
+	 * Writes out any closed aggregation windows on its own task, if a connection is free right now
+	 */
+	private static void scheduleRollupFlush(){
+		final ViewAggregator aggregator = viewAggregator;
+		final long now = System.currentTimeMillis();
+		final AccessLoggerExecutor exec = getExecutor();
+		if(aggregator == null || !aggregator.hasClosedWindows(now) || !exec.tryAcquireConnection()){
+			return;
+		}
+		exec.execute(new Runnable(){
+			@Override
+			public void run(){
+				Connection conn = null;
+				try{
+					conn = getConnection();
+					aggregator.flushClosedWindows(conn, now);
+				}catch(SQLException e){
+					logger.error("Unable to get DB Connection to write view rollups");
+				}finally{
+					closeConnection(conn);
+					exec.releaseConnection();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Expires closed IP coalescing windows, and writes their hit counts on their own task if
+	 *   there are any and a connection is free right now
+	 */
+	private static void scheduleIpHitFlush(){
+		final IpAccessCoalescer coalescer = ipCoalescer;
+		final long now = System.currentTimeMillis();
+		final AccessLoggerExecutor exec = getExecutor();
+		if(coalescer == null || !coalescer.expireWindows(now) || !exec.tryAcquireConnection()){
+			return;
+		}
+		exec.execute(new Runnable(){
+			@Override
+			public void run(){
+				Connection conn = null;
+				try{
+					conn = getConnection();
+					coalescer.writeHitCounts(conn, now);
+				}catch(SQLException e){
+					logger.error("Unable to get DB Connection to write IP access hit counts");
+				}finally{
+					closeConnection(conn);
+					exec.releaseConnection();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Fsyncs the write ahead log if enough appends or time have built up since the last sync,
+	 *   so the tail of the log isn't left unsynced when enqueues slow down
+	 */
+	private static void syncWriteAheadLog(){
+		AccessWriteAheadLog wal = writeAheadLog;
+		if(wal != null){
+			try{
+				wal.syncIfDue();
+			}catch(IOException e){
+				logger.error("Unable to sync access logger write ahead log");
+				e.printStackTrace();
 			}
 		}
 	}
@@ -245,7 +697,7 @@ public class AccessLoggerQueue {
 		
 		public ErrorFileChunk(){
 			comments = new Vector<String>();
-			views = new Vector<ProductView>(CHUNK_SIZE);
+			views = new Vector<ProductView>(getCurrentChunkSize());
 		}
 		
 		public static List<ErrorFileChunk> listFromInputReader(BufferedReader in) throws IOException{
@@ -285,6 +737,10 @@ public class AccessLoggerQueue {
 				in.mark(512);
 				line = in.readLine();
 			}
+			EntitlementBalanceCache cache = balanceCache;
+			if(cache != null){
+				cache.markReplayed(chunk.comments, chunk.views);
+			}
 			
 			return chunk;
 		}
@@ -316,19 +772,30 @@ public class AccessLoggerQueue {
 		}
 		
 		public static void writeChunksToFile(Collection<ErrorFileChunk> chunks, String filepath, boolean append) throws IllegalArgumentException, IOException{
-			File outFile = openErrorFile(filepath, true);
-			if(!append){
-				outFile.delete();
-			}
-			if(outFile != null){
-				FileOutputStream fos = new FileOutputStream(outFile);
-				Iterator<ErrorFileChunk> chunkIter = chunks.iterator();
-				while(chunkIter.hasNext()){
-					ErrorFileChunk curChunk = chunkIter.next();
-					curChunk.writeToStream(fos);
+			errorFileLock.lock();
+			try{
+				File outFile = openErrorFile(filepath, true);
+				if(outFile != null){
+					if(!append){
+						outFile.delete();
+					}
+					//Other tasks may have spilled chunks into the file since it was read, so append
+					FileOutputStream fos = new FileOutputStream(outFile, append);
+					try{
+						Iterator<ErrorFileChunk> chunkIter = chunks.iterator();
+						while(chunkIter.hasNext()){
+							ErrorFileChunk curChunk = chunkIter.next();
+							curChunk.writeToStream(fos);
+						}
+						fos.getFD().sync();
+					}finally{
+						fos.close();
+					}
+				}else{
+					throw new IOException("Unable to open error file for output");
 				}
-			}else{
-				throw new IOException("Unable to open error file for output");
+			}finally{
+				errorFileLock.unlock();
 			}
 		}
 		
@@ -361,43 +828,66 @@ public class AccessLoggerQueue {
 	}
 	
 	/**
-	 * Attempts to process the views in the provided ErrorFileChunks
+	 * Attempts to process the views in the provided ErrorFileChunks, writing any that fail back to ERROR_FILE
 	 * Sends an email to ERROR_EMAIL on error, as long as the error email flag is not set
 	 * @param chunks
 	 * @return the number of chunks that were successfully processed
 	 */
 	protected static int handleErrorChunks(List<ErrorFileChunk> chunks){
+		int handled = processErrorChunks(chunks);
+		if(handled < chunks.size()){
+			writeBackErrorChunks(chunks.subList(handled, chunks.size()));
+		}
+		return handled;
+	}
+	
+	/**
+	 * Processes the provided ErrorFileChunks in order, stopping at the first one that fails
+	 * Sends an email to ERROR_EMAIL on error, as long as the error email flag is not set
+	 * @param chunks
+	 * @return the number of chunks that were successfully processed
+	 */
+	private static int processErrorChunks(List<ErrorFileChunk> chunks){
 		int i = 0;
 		for(i = 0; i < chunks.size(); i++){
 			ErrorFileChunk curChunk = chunks.get(i);
 			System.out.format("Found a chunk: \n%s", curChunk);
 			try{
-				processViews(SMDBPool.getInstance().getDataSource().getConnection(), curChunk.getViews());
+				processViewsWithPermit(curChunk.getViews());
 			}catch(SQLException e){
 				if(!isErrorEmailSent()){
 					setErrorEmailSent(true);
-					SMMailer.sendMessage(ERROR_EMAIL, "Access Logger Queue Error", 
+					sendErrorMail(ERROR_EMAIL, "Access Logger Queue Error", 
 							"There was an error processing the Errors file in the Access Logger Queue\n" +
 							"The exception message is:" + e.getMessage() + "\n" +
 							"The Error file chunk is as follows: \n" +
 							curChunk.toString());
 				}
-				try {
-					logger.error("Unable to process Error File chunks");
-					e.printStackTrace();
-					ErrorFileChunk.writeChunksToFile(chunks.subList(i, chunks.size()), ERROR_FILE);
-					break;
-				} catch (IOException e1) {
-					logger.error("Unable to write chunks to error file");
-					e1.printStackTrace();
-					writeObjectsToLog(chunks.subList(i, chunks.size()));
-					break;
-				}
+				logger.error("Unable to process Error File chunks");
+				e.printStackTrace();
+				break;
 			}
 		}
 		return i;
 	}
 	
+	/**
+	 * Appends chunks that failed again back to ERROR_FILE, or to the log if that can't be written
+	 * @param chunks
+	 * @return true if the chunks were written and synced to ERROR_FILE
+	 */
+	private static boolean writeBackErrorChunks(List<ErrorFileChunk> chunks){
+		try {
+			ErrorFileChunk.writeChunksToFile(chunks, ERROR_FILE);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to write chunks to error file");
+			e.printStackTrace();
+			writeObjectsToLog(chunks);
+			return false;
+		}
+	}
+	
 	/**
 	 * Processes a passed in string of error file chunks
 	 * This method will clear the ErrorEmailSent flag if successful
@@ -427,75 +917,104 @@ public class AccessLoggerQueue {
 	
 	/**
 	 * Attempt to process the error file and retry all of the transactions inside that file
+	 * The file is moved aside while it is replayed, so new chunks can keep being spilled into it,
+	 *   and any chunks that fail again are appended back to it.  Only one replay runs at a time.
 	 * This method will clear the ErrorEmailSent flag if successful
 	 * @param errorFileName - Error file to process
 	 * @return - true on success, false on failure
 	 */
 	public static boolean handleErrorFile(String errorFileName){
+		if(!errorFileReplaying.compareAndSet(false, true)){
+			return false;
+		}
+		try{
+			return replayErrorFile(errorFileName);
+		}finally{
+			errorFileReplaying.set(false);
+		}
+	}
+	
+	private static boolean replayErrorFile(String errorFileName){
 		File errorFile = null;
 		try{
 			errorFile = openErrorFile(errorFileName, true);
 		}catch(Exception e){
-			SMMailer.sendMessage(ERROR_EMAIL, "Access Logger Queue error file not writable",
+			sendErrorMail(ERROR_EMAIL, "Access Logger Queue error file not writable",
 						String.format("Unable to open/write to error file: %s", errorFileName));
 			return false;
 		}
-		//If ERROR_FILE exists and is not empty...
-		if(errorFile.exists() && errorFile.length() != 0){
-			List<ErrorFileChunk> chunks = null;
+		//A replay file left behind means the last replay didn't finish, so pick that up first
+		File replayFile = new File(errorFile.getPath() + REPLAY_SUFFIX);
+		errorFileLock.lock();
+		try{
+			if(!replayFile.exists()){
+				if(!errorFile.exists() || errorFile.length() == 0){
+					//If there was no file, or it's empty... there're no errors, so return success
+					clearErrorEmailSentFlag();
+					return true;
+				}
+				if(!errorFile.renameTo(replayFile)){
+					logger.error(String.format("Unable to move error file aside for processing: %s", errorFile.getAbsolutePath()));
+					return false;
+				}
+			}
+		}finally{
+			errorFileLock.unlock();
+		}
+		List<ErrorFileChunk> chunks = null;
+		try{
+			BufferedReader in = new BufferedReader(new FileReader(replayFile));
 			try{
-				FileReader fRead = new FileReader(errorFile);
-				BufferedReader in = new BufferedReader(fRead);
 				chunks = ErrorFileChunk.listFromInputReader(in);
-			}catch(Exception e){
-				SMMailer.sendMessage(ERROR_EMAIL, "Access Logger Queue error file problem",
-						String.format("There was a problem loading the error file: %s\n%s",
-								errorFileName, e.getMessage()));
-				logger.error("Unable to read error file:");
-				e.printStackTrace();
-				return false;
+			}finally{
+				in.close();
 			}
-			
-			//Handle the error chunks
-			int chunksHandled = handleErrorChunks(chunks);
-			if(chunksHandled == chunks.size()){
-				try{
-					if(!errorFile.delete()){
-						logger.error("Unable to delete error file after processing");
-					}
-				}catch(SecurityException e){
-					logger.error("Unable to delete error file after processing");
-					e.printStackTrace();
-				}
-				clearErrorEmailSentFlag();
-				return true;
-			}else{
-				try {
-					//Write the remaining chunks back to the file
-					ErrorFileChunk.writeChunksToFile(chunks.subList(chunksHandled, chunks.size()),
-							ERROR_FILE);
-				} catch (IOException e) {
-					e.printStackTrace();
-					writeObjectsToLog(chunks.subList(chunksHandled, chunks.size()));
-				}
-				return false;
+		}catch(Exception e){
+			sendErrorMail(ERROR_EMAIL, "Access Logger Queue error file problem",
+					String.format("There was a problem loading the error file: %s\n%s",
+							replayFile.getPath(), e.getMessage()));
+			logger.error("Unable to read error file:");
+			e.printStackTrace();
+			return false;
+		}
+		
+		//Handle the error chunks, any that fail are written back to ERROR_FILE
+		int chunksHandled = processErrorChunks(chunks);
+		if(chunksHandled < chunks.size() && !writeBackErrorChunks(chunks.subList(chunksHandled, chunks.size()))){
+			//The replay file is the only copy on disk of the failed chunks, so keep it for the next replay.
+			//  That will process the chunks that did succeed a second time, but nothing is lost
+			logger.error(String.format("Keeping error replay file %s, chunks that failed couldn't be written back to %s",
+					replayFile.getAbsolutePath(), ERROR_FILE));
+			return false;
+		}
+		try{
+			if(!replayFile.delete()){
+				logger.error("Unable to delete error file after processing");
 			}
+		}catch(SecurityException e){
+			logger.error("Unable to delete error file after processing");
+			e.printStackTrace();
 		}
-		//If there was no file, or it's empty... there're no errors, so return success
-		clearErrorEmailSentFlag();
-		return true;
+		if(chunksHandled == chunks.size()){
+			clearErrorEmailSentFlag();
+			return true;
+		}
+		return false;
 	}
 	
 	//TODO: need to find some way to run either a file or copy/pasted error chunks from some app
 	
+	/**
+	 * Drain loop, hands chunks off to tasks on the executor.  Each task borrows its own
+	 *   connection from the pool, with the number in use bounded by MAX_CONNECTIONS
+	 */
 	private static class QueueHandlerRunnable implements Runnable{
 		@Override
 		public void run() {
 			Connection conn = null;
 			try {
 				System.out.format("Attempting to connect to database\n");
-				conn = SMDBPool.getInstance().getDataSource().getConnection();
-				conn.setAutoCommit(false);
+				conn = getConnection();
 				System.out.format("Connected.\n");
 			} catch (SQLException e1) {
 				logger.error("Unable to get DB Connection in Entitlements Access Logger!");
@@ -503,22 +1022,101 @@ public class AccessLoggerQueue {
 				//Exit from thread, since we can't do anything without the db access
 				AccessLoggerQueue.queueHandler = null;
 				return;
+			} finally {
+				closeConnection(conn);
 			}
-			while(true){
-				drainQueue(conn, CHUNK_SIZE);
-				handleErrorFile(ERROR_FILE);
+			try {
+				replayWriteAheadLog();
+			} catch (InterruptedException e) {}
+			while(!stopRequested){
+				try {
+					drainQueue(getChunkSizer().getChunkSize());
+				} catch (InterruptedException e) {}
+				scheduleErrorFileReplay();
+				syncWriteAheadLog();
+				if(balanceCache != null){
+					balanceCache.evictIdleIfDue();
+				}
+				scheduleRollupFlush();
+				scheduleIpHitFlush();
 				try {
 					Thread.sleep(1);
 				} catch (InterruptedException e) {}
 			}
+			finishStopping(stopDeadline);
 		}
 	}
 	
-	protected synchronized static BlockingQueue<ProductView> getAccessQueue(){
-		if(accessQueue == null){
-			accessQueue = new LinkedBlockingQueue<ProductView>();
+	/**
+	 * Runs on the handler thread once it has been asked to stop: drains what is left in the queue,
+	 *   waits for the chunks in flight, then writes out every open aggregation window and IP access
+	 *   hit count, and syncs the write ahead log
+	 * @param deadline - when to give up waiting on the queue and chunks
+	 */
+	private static void finishStopping(long deadline){
+		AccessLoggerExecutor exec = getExecutor();
+		try{
+			while(!getAccessQueue().isEmpty() && System.currentTimeMillis() < deadline){
+				drainQueue(getChunkSizer().getChunkSize());
+			}
+			if(!exec.awaitIdle(deadline - System.currentTimeMillis())){
+				logger.error("Access logger chunks still running at shutdown, their rollup counts may be lost");
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		ViewAggregator aggregator = viewAggregator;
+		if(aggregator != null){
+			Connection conn = null;
+			boolean flushed = false;
+			try{
+				conn = getConnection();
+				flushed = aggregator.flushAllWindows(conn);
+			}catch(SQLException e){
+				logger.error("Unable to get DB Connection to write view rollups at shutdown");
+			}finally{
+				closeConnection(conn);
+			}
+			if(!flushed){
+				logger.error("Unable to write open view rollup windows at shutdown, ENTITLEMENTS_ROLLUP will be short of ENTITLEMENTS_LOG for them");
+			}
+		}
+		IpAccessCoalescer coalescer = ipCoalescer;
+		if(coalescer != null){
+			Connection conn = null;
+			try{
+				conn = getConnection();
+				int unwritten = coalescer.flushAll(conn);
+				if(unwritten != 0){
+					logger.error(String.format("Unable to write IP access hit counts for %d pairs at shutdown", unwritten));
+				}
+			}catch(SQLException e){
+				logger.error("Unable to get DB Connection to write IP access hit counts at shutdown");
+			}finally{
+				closeConnection(conn);
+			}
+		}
+		AccessWriteAheadLog wal = writeAheadLog;
+		if(wal != null){
+			try{
+				wal.sync();
+			}catch(IOException e){
+				logger.error("Unable to sync access logger write ahead log at shutdown");
+			}
+		}
+	}
+	
+	protected static BlockingQueue<ProductView> getAccessQueue(){
+		BlockingQueue<ProductView> queue = accessQueue;
+		if(queue == null){
+			synchronized(initLock){
+				if(accessQueue == null){
+					accessQueue = new LinkedBlockingQueue<ProductView>();
+				}
+				queue = accessQueue;
+			}
 		}
-		return accessQueue;
+		return queue;
 	}
 	
 	/**
@@ -527,21 +1125,314 @@ public class AccessLoggerQueue {
 	 * @param view
 	 * @throws IllegalStateException if handler thread is not running
 	 */
-	public synchronized static void EnqueueAccess(ProductView view) throws IllegalStateException{
+	public static void EnqueueAccess(ProductView view) throws IllegalStateException{
+		if(queueHandler == null){
+			throw new IllegalStateException("Access Logger Queue Handler is not running");
+		}
+		reserveBalance(view);
+		enqueueLock.lock();
+		try{
+			appendToWriteAheadLog(view);
+			getAccessQueue().add(view);
+		}finally{
+			enqueueLock.unlock();
+		}
+	}
+	
+	private static void reserveBalance(ProductView view){
+		EntitlementBalanceCache cache = balanceCache;
+		if(cache != null){
+			cache.reserve(view);
+		}
+	}
+	
+	/**
+	 * Appends the view to the write ahead log, if it is enabled.
+	 * Called while holding enqueueLock, so log order matches queue order
+	 * @param view
+	 */
+	private static void appendToWriteAheadLog(ProductView view){
+		AccessWriteAheadLog wal = writeAheadLog;
+		if(wal != null){
+			try{
+				wal.append(view);
+			}catch(IOException e){
+				//Still queue the view, it just won't survive a crash
+				logger.error(String.format("Unable to append view to write ahead log: %s", view.toCSV()));
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Enqueue a view to be written to the access logs, returning a future that completes once
+	 *   the view's batch has been committed, or has failed and been synced to the error file.
+	 * The future completes exceptionally if the view could be neither committed nor spilled.
+	 * Futures are completed on the executor task that processed the chunk (a virtual thread in
+	 *   VIRTUAL mode), while it still holds a connection permit, so any real work done on completion
+	 *   should use the *Async variants of the CompletableFuture methods.
+	 * Must be called after {@link startHandler}
+	 * @param view
+	 * @return
+	 * @throws IllegalStateException if handler thread is not running
+	 */
+	public static CompletableFuture<Durability> enqueueAsync(ProductView view) throws IllegalStateException{
 		if(queueHandler == null){
 			throw new IllegalStateException("Access Logger Queue Handler is not running");
 		}
-		getAccessQueue().add(view);
+		CompletableFuture<Durability> future = new CompletableFuture<Durability>();
+		view.setDurabilityFuture(future);
+		reserveBalance(view);
+		enqueueLock.lock();
+		try{
+			appendToWriteAheadLog(view);
+			getAccessQueue().add(view);
+		}finally{
+			enqueueLock.unlock();
+		}
+		return future;
+	}
+	
+	/**
+	 * Turns on the write ahead log, so queued views are also appended to a local log in
+	 *   directory, and any views left uncommitted by a previous run are replayed when the
+	 *   handler starts.
+	 * Must be called before {@link startHandler}
+	 * @param directory
+	 * @throws IOException if the log directory can't be opened
+	 * @throws IllegalStateException if the handler thread is already running
+	 */
+	public static synchronized void enableWriteAheadLog(String directory) throws IOException, IllegalStateException{
+		if(queueHandler != null){
+			throw new IllegalStateException("Write ahead log must be enabled before the Access Logger Queue Handler is started");
+		}
+		if(writeAheadLog == null){
+			writeAheadLog = AccessWriteAheadLog.open(directory);
+		}
 	}
 	
 	/**
-	 * Start up the queue processing thread for the access logger queue
+	 * Turns on the in-process entitlement balance cache.  Queued views are reserved against the
+	 *   cache as they are enqueued, and entitlement decrements are written once per entitlement
+	 *   per chunk instead of once per view.
+	 * Must be called before {@link startHandler}
+	 * @throws IllegalStateException if the handler thread is already running
+	 */
+	public static synchronized void enableBalanceCache() throws IllegalStateException{
+		if(queueHandler != null){
+			throw new IllegalStateException("Balance cache must be enabled before the Access Logger Queue Handler is started");
+		}
+		if(balanceCache == null){
+			balanceCache = new EntitlementBalanceCache();
+		}
+	}
+	
+	/**
+	 * Turns on the view aggregation stage.  Committed views are counted per product/user in
+	 *   tumbling windows, and written to ENTITLEMENTS_ROLLUP as each window closes.
+	 * Counts for windows that haven't closed yet, up to WINDOW_MS + LATENESS_MS (6 minutes) of views,
+	 *   are only held in memory.  {@link stopHandler}, and the shutdown hook, write them out early,
+	 *   but a crash or kill -9 loses them from ENTITLEMENTS_ROLLUP, while ENTITLEMENTS_LOG still
+	 *   has the views.
+	 * Must be called before {@link startHandler}
+	 * @throws IllegalStateException if the handler thread is already running
+	 */
+	public static synchronized void enableViewAggregation() throws IllegalStateException{
+		if(queueHandler != null){
+			throw new IllegalStateException("View aggregation must be enabled before the Access Logger Queue Handler is started");
+		}
+		if(viewAggregator == null){
+			viewAggregator = new ViewAggregator();
+		}
+	}
+	
+	/**
+	 * Turns on coalescing of IP_ACCESSES writes.  Only the first view of each IP address/userID
+	 *   in a window of windowMs (by debit time) writes a row, the rest are only counted.
+	 * With countHits, rows are written with their window's start (WINDOW_START, epoch millis as a
+	 *   BIGINT) and HITS = 1, and the other views in the window are added to HITS once it closes.
+	 *   Rows that get hits added carry an id unique to this run (WRITER_ID, a 36 character UUID),
+	 *   and the update matches on it, so other servers and restarts never add to each other's rows.
+	 *   That needs WINDOW_START, WRITER_ID and HITS columns on IP_ACCESSES.
+	 * Must be called before {@link startHandler}
+	 * @param windowMs
+	 * @param countHits
+	 * @throws IllegalStateException if the handler thread is already running
+	 */
+	public static synchronized void enableIpCoalescing(long windowMs, boolean countHits) throws IllegalStateException{
+		if(queueHandler != null){
+			throw new IllegalStateException("IP coalescing must be enabled before the Access Logger Queue Handler is started");
+		}
+		ipCoalescer = new IpAccessCoalescer(windowMs, countHits);
+	}
+	
+	/**
+	 * Returns the units left on an entitlement, including views that are queued but not yet
+	 *   written to the database.  Served from the balance cache, only hitting the database
+	 *   when the balance isn't cached or is due to be reloaded.
+	 * @param entitlementID
+	 * @param userID
+	 * @return
+	 * @throws SQLException if the balance had to be loaded, and couldn't be
+	 * @throws IllegalStateException if the balance cache is not enabled
+	 */
+	public static long remainingUnits(long entitlementID, int userID) throws SQLException, IllegalStateException{
+		EntitlementBalanceCache cache = balanceCache;
+		if(cache == null){
+			throw new IllegalStateException("Entitlement balance cache is not enabled");
+		}
+		return cache.remainingUnits(entitlementID, userID);
+	}
+	
+	/**
+	 * Chooses how the drain loop and its tasks are run.  In VIRTUAL mode every chunk, replay
+	 *   and spill gets its own virtual thread, falling back to PLATFORM threads on JVMs without
+	 *   them.  maxConnections bounds how many tasks use the database at once.
+	 * Must be called before {@link startHandler}, defaults to PLATFORM with 1 connection
+	 * @param mode
+	 * @param maxConnections
+	 * @throws IllegalStateException if the handler thread is already running
+	 */
+	public static synchronized void configureExecutor(AccessLoggerExecutor.Mode mode, int maxConnections) throws IllegalStateException{
+		if(queueHandler != null){
+			throw new IllegalStateException("Executor must be configured before the Access Logger Queue Handler is started");
+		}
+		EXECUTOR_MODE = mode;
+		MAX_CONNECTIONS = maxConnections;
+		if(executor != null){
+			executor.shutdown();
+		}
+		executor = new AccessLoggerExecutor(EXECUTOR_MODE, MAX_CONNECTIONS);
+	}
+	
+	/**
+	 * Sets the bounds the chunk size is adjusted within, and the commit time chunks are sized
+	 *   for.  Full chunks that commit within targetCommitMs grow the size, slow or failed chunks
+	 *   halve it, see {@link AdaptiveChunkSizer}.
+	 * Must be called before {@link startHandler}, defaults to 10 - 500 views, targeting 100ms
+	 * @param minChunkSize
+	 * @param maxChunkSize
+	 * @param targetCommitMs
+	 * @throws IllegalStateException if the handler thread is already running
+	 */
+	public static synchronized void configureChunkSizing(int minChunkSize, int maxChunkSize, long targetCommitMs) throws IllegalStateException{
+		if(queueHandler != null){
+			throw new IllegalStateException("Chunk sizing must be configured before the Access Logger Queue Handler is started");
+		}
+		AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(CHUNK_SIZE, minChunkSize, maxChunkSize, CHUNK_SIZE_STEP, targetCommitMs);
+		synchronized(initLock){
+			chunkSizer = sizer;
+		}
+		MIN_CHUNK_SIZE = minChunkSize;
+		MAX_CHUNK_SIZE = maxChunkSize;
+		TARGET_COMMIT_MS = targetCommitMs;
+	}
+	
+	/**
+	 * The chunk size the queue is currently draining at
+	 */
+	public static int getCurrentChunkSize(){
+		return getChunkSizer().getChunkSize();
+	}
+	
+	protected static AdaptiveChunkSizer getChunkSizer(){
+		AdaptiveChunkSizer sizer = chunkSizer;
+		if(sizer == null){
+			//Only until configureChunkSizing or startHandler has created it
+			synchronized(initLock){
+				if(chunkSizer == null){
+					chunkSizer = new AdaptiveChunkSizer(CHUNK_SIZE, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, CHUNK_SIZE_STEP, TARGET_COMMIT_MS);
+				}
+				sizer = chunkSizer;
+			}
+		}
+		return sizer;
+	}
+	
+	/**
+	 * For load testing, swaps SMDBPool, SMMailer and the error file location for stand-ins.
+	 * Must be called before {@link startHandler}
+	 * @param dataSource
+	 * @param mailer
+	 * @param errorFile
+	 * @throws IllegalStateException if the handler thread is already running
+	 */
+	public static synchronized void useStandIns(DataSource dataSource, ErrorMailer mailer, String errorFile) throws IllegalStateException{
+		if(queueHandler != null){
+			throw new IllegalStateException("Stand-ins must be set before the Access Logger Queue Handler is started");
+		}
+		dataSourceOverride = dataSource;
+		errorMailerOverride = mailer;
+		ERROR_FILE = errorFile;
+	}
+	
+	protected static String getErrorFile(){
+		return ERROR_FILE;
+	}
+	
+	protected static AccessLoggerExecutor getExecutor(){
+		AccessLoggerExecutor exec = executor;
+		if(exec == null){
+			//Only until configureExecutor or startHandler has created it
+			synchronized(initLock){
+				if(executor == null){
+					executor = new AccessLoggerExecutor(EXECUTOR_MODE, MAX_CONNECTIONS);
+				}
+				exec = executor;
+			}
+		}
+		return exec;
+	}
+	
+	/**
+	 * Start up the queue processing thread for the access logger queue, and registers a shutdown
+	 *   hook that runs {@link stopHandler}
 	 */
 	public static synchronized void startHandler(){
 		if(queueHandler == null || !queueHandler.isAlive()){
 			System.out.format("Starting access logger queue handler...\n");
-			queueHandler = new Thread(new QueueHandlerRunnable());
+			getChunkSizer();
+			stopRequested = false;
+			queueHandler = getExecutor().newThread(new QueueHandlerRunnable());
 			queueHandler.start();
+			if(shutdownHook == null){
+				shutdownHook = new Thread(new Runnable(){
+					@Override
+					public void run(){
+						stopHandler(SHUTDOWN_TIMEOUT_MS);
+					}
+				}, "access-logger-shutdown");
+				Runtime.getRuntime().addShutdownHook(shutdownHook);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the queue processing thread: drains whatever is still queued, waits for the chunks in
+	 *   flight, and writes out every open aggregation window and IP access hit count.  Views enqueued after this are only
+	 *   processed once the handler is started again.
+	 * @param timeoutMs - how long to wait for the queue to drain and the chunks to finish
+	 */
+	public static void stopHandler(long timeoutMs){
+		Thread handler;
+		synchronized(AccessLoggerQueue.class){
+			handler = queueHandler;
+			if(handler == null){
+				return;
+			}
+			stopDeadline = System.currentTimeMillis() + timeoutMs;
+			stopRequested = true;
+		}
+		try{
+			//Time on top of the deadline for the rollup flush
+			handler.join(timeoutMs + SHUTDOWN_TIMEOUT_MS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		synchronized(AccessLoggerQueue.class){
+			if(queueHandler == handler){
+				queueHandler = null;
+			}
 		}
 	}
 	
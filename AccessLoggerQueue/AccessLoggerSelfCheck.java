@@ -0,0 +1,465 @@
+package com.cwilliams.commerce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Checks of the access logger's components that are easy to get subtly wrong and hard to see
+ *   going wrong from a load run: IP address parsing, CompactDataMap's CSV parsing against the
+ *   TreeMap parsing it replaced, LongIntCounterMap, write ahead log recovery and checkpointing,
+ *   and IP access coalescer rollback.
+ *
+ * Run from the load harness with checks=true (before the load) or checks=only.  Randomized checks
+ *   print their seed with any failure, and take seed=N to repeat a run.
+ * @author corey
+ *
+ */
+public class AccessLoggerSelfCheck {
+	private final PrintStream report;
+	private final long seed;
+	private int failures = 0;
+
+	AccessLoggerSelfCheck(PrintStream report, long seed){
+		this.report = report;
+		this.seed = seed;
+	}
+
+	private void check(boolean ok, String format, Object... args){
+		if(!ok){
+			failures++;
+			report.format("  FAILED: %s%n", String.format(format, args));
+		}
+	}
+
+	private void reportResult(String name, int failuresBefore){
+		report.format("  %-30s %s%n", name + ":", (failures == failuresBefore) ? "ok" : "FAILED");
+	}
+
+	/**
+	 * Runs every check, reporting each failure
+	 * @return the number of failed checks
+	 */
+	int run() throws Exception{
+		report.format("Self checks (seed=%d)%n", seed);
+		int before = failures;
+		checkIpAddressParser();
+		reportResult("IP address parsing", before);
+		before = failures;
+		checkCompactDataMap();
+		reportResult("CompactDataMap.fromCSV", before);
+		before = failures;
+		checkLongIntCounterMap();
+		reportResult("LongIntCounterMap", before);
+		before = failures;
+		checkWriteAheadLog();
+		reportResult("Write ahead log recovery", before);
+		before = failures;
+		checkCoalescerRollback();
+		reportResult("IP access coalescer rollback", before);
+		return failures;
+	}
+
+	// IP addresses
+
+	private void checkIpAddressParser(){
+		IpAddressParser parser = IpAddressParser.forCurrentThread();
+		String[][] valid = {
+			{"192.168.0.1", "192.168.0.1"}, {"0.0.0.0", "0.0.0.0"}, {"255.255.255.255", "255.255.255.255"},
+			{"::", "::"}, {"::1", "::1"}, {"1::", "1::"},
+			{"1:2:3:4:5:6:7::", "1:2:3:4:5:6:7:0"}, {"::2:3:4:5:6:7:8", "0:2:3:4:5:6:7:8"},
+			{"1::3:4:5:6:7:8", "1:0:3:4:5:6:7:8"}, {"2001:DB8:0:0:0:0:0:1", "2001:db8::1"},
+			{"::ffff:1.2.3.4", "::ffff:1.2.3.4"}, {"1:2:3:4:5:6:1.2.3.4", "1:2:3:4:5:6:102:304"}
+		};
+		for(int i = 0; i < valid.length; i++){
+			ProductView view = new ProductView();
+			view.setIpAddress(valid[i][0]);
+			check(parser.parse(valid[i][0]) != IpAddressParser.NONE, "%s didn't parse", valid[i][0]);
+			check(view.getIpAddress().equals(valid[i][1]), "%s came back as %s, expected %s",
+					valid[i][0], view.getIpAddress(), valid[i][1]);
+		}
+		String[] invalid = {
+			"", "1.2.3", "1.2.3.4.5", "256.1.1.1", "01.2.3.4", "1..2.3", "1.2.3.4.", "a.b.c.d", " 1.2.3.4",
+			//'::' with no group left for it to stand for
+			"1:2:3:4:5:6:7:8::", "::1:2:3:4:5:6:7:8", "1:2:3:4::5:6:7:8", "1:2:3:4:5:6:7::1.2.3.4",
+			"1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", ":::", ":1:2:3:4:5:6:7", "1:2:3:4:5:6:7:",
+			"12345::", "g::", "1:2:3:4:5:6:7:1.2.3.4", "::1.2.3", "::1.2.3.4:5", "fe80::1%eth0"
+		};
+		for(int i = 0; i < invalid.length; i++){
+			ProductView view = new ProductView();
+			view.setIpAddress(invalid[i]);
+			check(parser.parse(invalid[i]) == IpAddressParser.NONE, "'%s' parsed", invalid[i]);
+			//Anything unparseable is kept as it was given
+			check(view.getIpAddress().equals(invalid[i]), "'%s' came back as '%s'", invalid[i], view.getIpAddress());
+		}
+	}
+
+	// Data maps
+
+	/**
+	 * ProductView's CSV parsing from before CompactDataMap
+	 */
+	private static Map<String, String> treeMapFromCSV(String csv){
+		Map<String, String> newData = new TreeMap<String, String>();
+		String[] keyVals = csv.split("&");
+		for(int i = 0; i < keyVals.length; i++){
+			String[] keyVal = keyVals[i].split("=");
+			if(keyVal.length == 2){
+				newData.put(keyVal[0], keyVal[1]);
+			}
+		}
+		return newData;
+	}
+
+	private void checkCompactDataMap(){
+		Random random = new Random(seed);
+		//A small alphabet, so repeated keys, empty keys and stray '='s and '&'s come up often
+		char[] alphabet = {'a', 'b', '=', '=', '&'};
+		StringBuilder csv = new StringBuilder();
+		for(int i = 0; i < 200000 && failures < 10; i++){
+			csv.setLength(0);
+			int length = random.nextInt(14);
+			for(int j = 0; j < length; j++){
+				csv.append(alphabet[random.nextInt(alphabet.length)]);
+			}
+			String text = csv.toString();
+			Map<String, String> expected = treeMapFromCSV(text);
+			CompactDataMap actual = CompactDataMap.fromCSV(text);
+			check(actual.equals(expected) && expected.equals(actual), "'%s' parsed to %s, expected %s", text, actual, expected);
+			check(actual.hashCode() == expected.hashCode(), "'%s' hashed differently", text);
+			check(new ArrayList<String>(actual.keySet()).equals(new ArrayList<String>(expected.keySet())),
+					"'%s' keys out of order: %s", text, actual.keySet());
+			String written = actual.appendCSV(new StringBuilder()).toString();
+			check(CompactDataMap.fromCSV(written).equals(actual), "'%s' didn't survive writing out as '%s'", text, written);
+			check(CompactDataMap.copyOf(expected).equals(actual), "copyOf('%s') doesn't match fromCSV", text);
+		}
+	}
+
+	private void checkLongIntCounterMap(){
+		Random random = new Random(seed);
+		//The FREE marker and the ends of the range along with keys that collide a lot
+		long[] specialKeys = {Long.MIN_VALUE, Long.MAX_VALUE, 0L, -1L, 1L << 32};
+		for(int round = 0; round < 50 && failures < 10; round++){
+			LongIntCounterMap map = new LongIntCounterMap(random.nextInt(100));
+			LongIntCounterMap other = new LongIntCounterMap();
+			Map<Long, Integer> expected = new HashMap<Long, Integer>();
+			int adds = random.nextInt(5000);
+			for(int i = 0; i < adds; i++){
+				long key = (random.nextInt(10) == 0) ? specialKeys[random.nextInt(specialKeys.length)]
+						: random.nextInt(1 + round * 100) * 0x100000000L;
+				int delta = random.nextInt(7) - 2;
+				LongIntCounterMap target = (i % 2 == 0) ? map : other;
+				Integer count = expected.get(key);
+				int newCount = ((count == null) ? 0 : count) + delta;
+				expected.put(key, newCount);
+				if(target == map){
+					check(map.add(key, delta) == map.get(key), "add(%d) returned something other than the new count", key);
+				}else{
+					other.add(key, delta);
+				}
+			}
+			map.addAll(other);
+			check(map.size() == expected.size(), "size %d, expected %d", map.size(), expected.size());
+			Map<Long, Integer> seen = new HashMap<Long, Integer>();
+			for(int slot = map.nextSlot(0); slot >= 0; slot = map.nextSlot(slot + 1)){
+				check(seen.put(map.keyAt(slot), map.countAt(slot)) == null, "key %d visited twice", map.keyAt(slot));
+			}
+			check(seen.equals(expected), "slots hold %s, expected %s", seen, expected);
+			Iterator<Map.Entry<Long, Integer>> entryIter = expected.entrySet().iterator();
+			while(entryIter.hasNext()){
+				Map.Entry<Long, Integer> entry = entryIter.next();
+				check(map.get(entry.getKey()) == entry.getValue(), "get(%d) = %d, expected %d",
+						entry.getKey(), map.get(entry.getKey()), entry.getValue());
+			}
+		}
+	}
+
+	// Write ahead log
+
+	private static ProductView walView(int userID){
+		ProductView view = new ProductView();
+		view.setEntitlementID(userID % 100)
+			.setProductID(1)
+			.setUserID(userID)
+			.setDebitTime(1000000L + userID);
+		view.setIPv4Address(0x0A000000 | userID);
+		Map<String, String> data = new HashMap<String, String>();
+		data.put("n", Integer.toString(userID));
+		view.setData(data);
+		return view;
+	}
+
+	private static File segmentFile(File directory, long firstSequence){
+		return new File(directory, String.format("access-%020d.wal", firstSequence));
+	}
+
+	private Set<Long> recoveredSequences(AccessWriteAheadLog wal){
+		Set<Long> sequences = new HashSet<Long>();
+		List<ProductView> recovered = wal.takeRecoveredViews();
+		for(int i = 0; i < recovered.size(); i++){
+			ProductView view = recovered.get(i);
+			check(view.equals(walView((int) view.getWalSequence())), "recovered view %d doesn't match what was logged",
+					view.getWalSequence());
+			sequences.add(view.getWalSequence());
+		}
+		return sequences;
+	}
+
+	private static void deleteDirectory(File directory){
+		File[] files = directory.listFiles();
+		for(int i = 0; files != null && i < files.length; i++){
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Logs two and a half segments worth of views and commits them as chunks out of order,
+	 *   leaving one chunk stuck and the tail never chunked, then reopens the log.  Only the stuck
+	 *   chunk and the tail should come back, and only their segments should be kept.
+	 */
+	private void checkWriteAheadLog() throws IOException{
+		final int views = 25000;
+		final int chunkSize = 500;
+		final int stuckChunk = 3;
+		final int chunked = 24500;
+		File directory = Files.createTempDirectory("accessLoggerCheck").toFile();
+		try{
+			AccessWriteAheadLog wal = AccessWriteAheadLog.open(directory.getPath());
+			//User IDs match sequence numbers, so recovered views can be checked against what was logged
+			for(int i = 1; i <= views; i++){
+				wal.append(walView(i));
+			}
+			List<Integer> chunks = new ArrayList<Integer>();
+			for(int i = 0; i < chunked / chunkSize; i++){
+				if(i != stuckChunk){
+					chunks.add(i);
+				}
+			}
+			Collections.shuffle(chunks, new Random(seed));
+			for(int i = 0; i < chunks.size(); i++){
+				long first = chunks.get(i) * chunkSize + 1;
+				wal.markCommitted(first, first + chunkSize - 1);
+			}
+			wal.close();
+			check(segmentFile(directory, 1).exists(), "segment holding the stuck chunk was deleted");
+			check(!segmentFile(directory, 10001).exists(), "fully committed segment was kept");
+			check(segmentFile(directory, 20001).exists(), "segment holding the tail was deleted");
+
+			wal = AccessWriteAheadLog.open(directory.getPath());
+			Set<Long> expected = new HashSet<Long>();
+			for(long sequence = stuckChunk * chunkSize + 1; sequence <= (stuckChunk + 1) * chunkSize; sequence++){
+				expected.add(sequence);
+			}
+			for(long sequence = chunked + 1; sequence <= views; sequence++){
+				expected.add(sequence);
+			}
+			Set<Long> recovered = recoveredSequences(wal);
+			check(recovered.equals(expected), "recovered %d views, expected %d", recovered.size(), expected.size());
+			//New views carry on after the old ones
+			ProductView next = walView(views + 1);
+			wal.append(next);
+			check(next.getWalSequence() == views + 1, "appended as sequence %d after recovery, expected %d",
+					next.getWalSequence(), views + 1);
+			//The recovered views committing, as one chunk with the committed views in its gaps
+			wal.markCommitted(stuckChunk * chunkSize + 1, views + 1);
+			wal.close();
+			String checkpoint = new String(Files.readAllBytes(new File(directory, "checkpoint").toPath())).trim();
+			check(checkpoint.equals(Integer.toString(views + 1)), "checkpoint is '%s', expected everything committed", checkpoint);
+			check(!segmentFile(directory, 1).exists() && !segmentFile(directory, 20001).exists(),
+					"committed segments kept after recovery");
+
+			wal = AccessWriteAheadLog.open(directory.getPath());
+			recovered = recoveredSequences(wal);
+			check(recovered.isEmpty(), "%d views recovered after everything was committed", recovered.size());
+			wal.close();
+		}finally{
+			deleteDirectory(directory);
+		}
+	}
+
+	// IP access coalescing
+
+	/**
+	 * Just enough of a Connection for the coalescer: IP_ACCESSES rows and their HITS, with hit
+	 *   updates matching on the row key and only applied on commit
+	 */
+	private static class HitsDatabase implements InvocationHandler{
+		private final Random random;
+		private final double failureRate;
+		//Address/user/window/writer of rows hits can be added to -> HITS
+		private final Map<String, Integer> keyedRows = new HashMap<String, Integer>();
+		private final List<String> pendingKeys = new ArrayList<String>();
+		private final List<Integer> pendingHits = new ArrayList<Integer>();
+		private long totalHits = 0;
+		private long unmatchedUpdates = 0;
+		private final Connection connection;
+
+		HitsDatabase(Random random, double failureRate){
+			this.random = random;
+			this.failureRate = failureRate;
+			connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[]{Connection.class}, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+			String name = method.getName();
+			if(name.equals("prepareStatement")){
+				return statement((String) args[0]);
+			}
+			if(name.equals("commit")){
+				for(int i = 0; i < pendingKeys.size(); i++){
+					keyedRows.put(pendingKeys.get(i), keyedRows.get(pendingKeys.get(i)) + pendingHits.get(i));
+					totalHits += pendingHits.get(i);
+				}
+			}
+			if(name.equals("commit") || name.equals("rollback")){
+				pendingKeys.clear();
+				pendingHits.clear();
+			}
+			return null;
+		}
+
+		private PreparedStatement statement(final String sql){
+			final Object[] params = new Object[8];
+			final List<Object[]> batch = new ArrayList<Object[]>();
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[]{PreparedStatement.class}, new InvocationHandler(){
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+					String name = method.getName();
+					if(name.startsWith("set")){
+						params[(Integer) args[0]] = name.equals("setNull") ? null : args[1];
+					}else if(name.equals("addBatch")){
+						batch.add(params.clone());
+					}else if(name.equals("execute")){
+						//Every row starts at HITS = 1, only rows with a WRITER_ID get updates
+						totalHits++;
+						if(params[5] != null){
+							keyedRows.put(rowKey(params[1], params[2], params[4], params[5]), 1);
+						}
+						return false;
+					}else if(name.equals("executeBatch")){
+						if(random.nextDouble() < failureRate){
+							throw new SQLException("Stand-in hit update failure");
+						}
+						int[] results = new int[batch.size()];
+						for(int i = 0; i < batch.size(); i++){
+							Object[] update = batch.get(i);
+							String key = rowKey(update[2], update[3], update[4], update[5]);
+							if(keyedRows.containsKey(key)){
+								pendingKeys.add(key);
+								pendingHits.add((Integer) update[1]);
+								results[i] = 1;
+							}else{
+								unmatchedUpdates++;
+							}
+						}
+						return results;
+					}
+					return null;
+				}
+			});
+		}
+
+		private static String rowKey(Object address, Object user, Object windowStart, Object writer){
+			return address + "|" + user + "|" + windowStart + "|" + writer;
+		}
+	}
+
+	/**
+	 * Pushes views through a coalescer in chunks that commit or roll back at random, interleaved
+	 *   with hit flushes that can fail too, with some views turning up after their window closed.
+	 * Once everything has committed and been flushed, SUM(HITS) has to be exactly the number of
+	 *   views, whatever was rolled back along the way.
+	 */
+	private void checkCoalescerRollback() throws SQLException{
+		Random random = new Random(seed);
+		final long windowMs = 1000;
+		final int views = 20000;
+		IpAccessCoalescer coalescer = new IpAccessCoalescer(windowMs, true);
+		HitsDatabase database = new HitsDatabase(random, 0.1);
+		//Well in the past, so flushAll closes every window
+		long start = System.currentTimeMillis() - 3600000;
+		long now = start;
+		List<ProductView> queue = new ArrayList<ProductView>();
+		List<List<ProductView>> inFlight = new ArrayList<List<ProductView>>();
+		List<List<ProductView>> inFlightRows = new ArrayList<List<ProductView>>();
+		int created = 0;
+		int committed = 0;
+		int rowsWritten = 0;
+		while(committed < views){
+			int action = random.nextInt(10);
+			if(action < 4 && created < views){
+				//A few users on a few addresses, so pairs repeat within a window
+				ProductView view = new ProductView();
+				int user = random.nextInt(5);
+				//Mostly current, sometimes a few windows late
+				long debitTime = now - ((random.nextInt(5) == 0) ? random.nextInt(5000) : random.nextInt(200));
+				view.setUserID(user).setDebitTime(Math.max(start, debitTime));
+				view.setIPv4Address(0x0A000000 | (user << 1) | random.nextInt(2));
+				queue.add(view);
+				created++;
+			}else if(action < 6 && !queue.isEmpty()){
+				int size = 1 + random.nextInt(Math.min(queue.size(), 50));
+				List<ProductView> chunk = new ArrayList<ProductView>(queue.subList(0, size));
+				queue.subList(0, size).clear();
+				//Counted when the chunk starts, so hit flushes can run before it commits or rolls back
+				List<ProductView> rows = new ArrayList<ProductView>();
+				for(int i = 0; i < chunk.size(); i++){
+					if(coalescer.shouldWrite(chunk.get(i))){
+						rows.add(chunk.get(i));
+					}
+				}
+				inFlight.add(chunk);
+				inFlightRows.add(rows);
+			}else if(action < 8 && !inFlight.isEmpty()){
+				//Chunks finish in any order
+				int finished = random.nextInt(inFlight.size());
+				List<ProductView> chunk = inFlight.remove(finished);
+				List<ProductView> rows = inFlightRows.remove(finished);
+				if(random.nextInt(4) == 0){
+					coalescer.rollback(chunk);
+					queue.addAll(0, chunk);
+				}else{
+					for(int i = 0; i < rows.size(); i++){
+						coalescer.writeRow(database.connection, rows.get(i));
+					}
+					rowsWritten += rows.size();
+					committed += chunk.size();
+				}
+			}else if(action == 8){
+				now += random.nextInt(50);
+			}else if(coalescer.expireWindows(now)){
+				coalescer.writeHitCounts(database.connection, now);
+			}
+		}
+		int unwritten = coalescer.flushAll(database.connection);
+		//A failed flush at shutdown loses its hits, try until one goes through
+		for(int i = 0; unwritten != 0 && i < 20; i++){
+			unwritten = coalescer.flushAll(database.connection);
+		}
+		check(unwritten == 0, "%d pairs left with hits unwritten", unwritten);
+		check(database.totalHits == committed, "SUM(HITS) is %d for %d views (%d rows written, %d updates matched no row, seed %d)",
+				database.totalHits, committed, rowsWritten, database.unmatchedUpdates, seed);
+		check(rowsWritten < committed / 2, "only coalesced %d views into %d rows", committed, rowsWritten);
+	}
+}
@@ -0,0 +1,434 @@
+package com.cwilliams.commerce;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Local append-only log of queued views, so that views waiting in the AccessLoggerQueue survive
+ *   a crash or kill of the JVM.
+ *
+ * Each view is appended as a line of "sequence;view csv".  Appends are fsynced in batches, after
+ *   SYNC_BATCH appends or SYNC_INTERVAL_MS, whichever comes first.  The log is split into segments
+ *   of SEGMENT_RECORDS views, and a segment is deleted once every view in it has been committed
+ *   (or spilled to the error file).
+ * Chunks can commit out of order when several are in flight at once, or not at all when they can
+ *   be neither committed nor spilled, so the checkpoint file holds the sequence everything up to
+ *   has been committed, plus the ranges of each chunk committed past it.  On startup only views
+ *   outside of those are replayed.  Adjacent ranges are merged, so there is roughly one range per
+ *   chunk still in flight (or stuck).
+ *
+ * Replay is at-least-once: a crash between a commit and the checkpoint write will replay that batch.
+ * @author corey
+ *
+ */
+public class AccessWriteAheadLog {
+	private static int SYNC_BATCH = 100;
+	private static long SYNC_INTERVAL_MS = 50;
+	private static int SEGMENT_RECORDS = 10000;
+	private static final String SEGMENT_PREFIX = "access-";
+	private static final String SEGMENT_SUFFIX = ".wal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	private final static Log logger = LogFactory.getLog(AccessWriteAheadLog.class);
+
+	/**
+	 * A segment file, and the last sequence number written to it
+	 */
+	private static class Segment{
+		final File file;
+		final long firstSequence;
+		long lastSequence;
+
+		Segment(File file, long firstSequence, long lastSequence){
+			this.file = file;
+			this.firstSequence = firstSequence;
+			this.lastSequence = lastSequence;
+		}
+	}
+
+	//Held across appends, fsyncs and checkpoint writes
+	private final ReentrantLock lock = new ReentrantLock();
+	private final File directory;
+	//Closed segments, oldest first
+	private final Deque<Segment> closedSegments = new ArrayDeque<Segment>();
+	private Segment currentSegment;
+	private FileOutputStream currentOut;
+	private int currentRecords = 0;
+
+	private long nextSequence = 1;
+	//Everything up to this sequence has been committed
+	private long committedSequence = 0;
+	//First to last sequence of committed chunks past committedSequence, merged when adjacent
+	private final TreeMap<Long, Long> committedRanges = new TreeMap<Long, Long>();
+	private int unsynced = 0;
+	private boolean directorySyncSupported = true;
+	private long lastSync = 0;
+
+	private List<ProductView> recoveredViews = new ArrayList<ProductView>();
+
+	private AccessWriteAheadLog(File directory){
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens the write ahead log in directory, creating it if needed, and loads any views
+	 *   that were logged but never committed.  Those are available from {@link takeRecoveredViews}
+	 * @param directoryPath
+	 * @return
+	 * @throws IOException if the directory can't be created or written to
+	 */
+	public static AccessWriteAheadLog open(String directoryPath) throws IOException{
+		File directory = new File(directoryPath);
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException(String.format("Unable to create write ahead log directory: %s", directoryPath));
+		}
+		if(!directory.canWrite()){
+			throw new IOException(String.format("Unable to write to write ahead log directory: %s", directoryPath));
+		}
+		AccessWriteAheadLog wal = new AccessWriteAheadLog(directory);
+		wal.recover();
+		wal.openSegment();
+		return wal;
+	}
+
+	private File[] listSegments(){
+		File[] segments = directory.listFiles(new FilenameFilter(){
+			@Override
+			public boolean accept(File dir, String name){
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if(segments == null){
+			return new File[0];
+		}
+		//Names are zero padded first sequence numbers, so they sort oldest first
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private void recover() throws IOException{
+		readCheckpoint();
+		long maxSequence = committedSequence;
+		if(!committedRanges.isEmpty()){
+			maxSequence = Math.max(maxSequence, committedRanges.lastEntry().getValue());
+		}
+		//Records that have a sequence but can't be replayed, marked committed so they don't hold segments
+		List<Long> unreadable = new ArrayList<Long>();
+		File[] segments = listSegments();
+		for(int i = 0; i < segments.length; i++){
+			long firstSequence = 0;
+			long lastSequence = 0;
+			BufferedReader in = new BufferedReader(new FileReader(segments[i]));
+			try{
+				String line = in.readLine();
+				while(line != null){
+					int sep = line.indexOf(';');
+					long sequence = 0;
+					try{
+						sequence = Long.parseLong(line.substring(0, sep));
+						ProductView view = new ProductView(line.substring(sep + 1));
+						if(!isCommitted(sequence, sequence)){
+							view.setWalSequence(sequence);
+							recoveredViews.add(view);
+						}
+					}catch(RuntimeException e){
+						//Most likely a torn write at the end of a segment from a crash mid-append
+						logger.error(String.format("Skipping unreadable write ahead log record in %s: %s",
+								segments[i].getName(), line));
+						if(sequence != 0){
+							unreadable.add(sequence);
+						}
+					}
+					if(sequence != 0){
+						if(firstSequence == 0){
+							firstSequence = sequence;
+						}
+						lastSequence = sequence;
+					}
+					line = in.readLine();
+				}
+			}finally{
+				in.close();
+			}
+			if(lastSequence == 0){
+				//Nothing usable in it, and a new segment may want the same name
+				segments[i].delete();
+				continue;
+			}
+			maxSequence = Math.max(maxSequence, lastSequence);
+			closedSegments.addLast(new Segment(segments[i], firstSequence, lastSequence));
+		}
+		nextSequence = maxSequence + 1;
+		Iterator<Long> unreadableIter = unreadable.iterator();
+		while(unreadableIter.hasNext()){
+			long sequence = unreadableIter.next();
+			addCommittedRange(sequence, sequence);
+		}
+		deleteCommittedSegments();
+		if(!recoveredViews.isEmpty()){
+			logger.info(String.format("Recovered %d uncommitted views from write ahead log %s",
+					recoveredViews.size(), directory.getAbsolutePath()));
+		}
+	}
+
+	/**
+	 * Reads committedSequence and committedRanges from the checkpoint file, one "first-last" range
+	 *   per line after the committed sequence.  An older checkpoint is just the committed sequence.
+	 */
+	private void readCheckpoint() throws IOException{
+		File checkpoint = new File(directory, CHECKPOINT_FILE);
+		if(!checkpoint.exists()){
+			return;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(checkpoint));
+		try{
+			String line = in.readLine();
+			if(line != null){
+				committedSequence = Long.parseLong(line.trim());
+				line = in.readLine();
+			}
+			while(line != null){
+				int sep = line.indexOf('-');
+				addCommittedRange(Long.parseLong(line.substring(0, sep)), Long.parseLong(line.substring(sep + 1).trim()));
+				line = in.readLine();
+			}
+		}catch(RuntimeException e){
+			committedSequence = 0;
+			committedRanges.clear();
+			logger.error(String.format("Invalid write ahead log checkpoint, replaying all segments in %s", directory.getAbsolutePath()));
+		}finally{
+			in.close();
+		}
+	}
+
+	private void openSegment() throws IOException{
+		File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX));
+		currentOut = new FileOutputStream(file, true);
+		syncDirectory();
+		currentSegment = new Segment(file, nextSequence, nextSequence - 1);
+		currentRecords = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the views recovered when the log was opened, in the order they were logged.
+	 * Only returns them once.
+	 * @return
+	 */
+	public List<ProductView> takeRecoveredViews(){
+		lock.lock();
+		try{
+			List<ProductView> ret = recoveredViews;
+			recoveredViews = new ArrayList<ProductView>();
+			return ret;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends view to the log, assigning it the next sequence number
+	 * @param view
+	 * @throws IOException
+	 */
+	public void append(ProductView view) throws IOException{
+		lock.lock();
+		try{
+			long sequence = nextSequence;
+			StringBuilder record = new StringBuilder();
+			//toCSV already ends with a newline
+			record.append(sequence).append(';').append(view.toCSV());
+			currentOut.write(record.toString().getBytes());
+			nextSequence++;
+			view.setWalSequence(sequence);
+			currentSegment.lastSequence = sequence;
+			currentRecords++;
+			unsynced++;
+			if(currentRecords >= SEGMENT_RECORDS){
+				rollSegment();
+			}else{
+				syncIfDue();
+			}
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fsyncs the current segment if SYNC_BATCH appends or SYNC_INTERVAL_MS have built up
+	 * @throws IOException
+	 */
+	public void syncIfDue() throws IOException{
+		lock.lock();
+		try{
+			if(unsynced != 0 && (unsynced >= SYNC_BATCH || System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS)){
+				sync();
+			}
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	public void sync() throws IOException{
+		lock.lock();
+		try{
+			currentOut.getChannel().force(false);
+			unsynced = 0;
+			lastSync = System.currentTimeMillis();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	private void rollSegment() throws IOException{
+		sync();
+		currentOut.close();
+		closedSegments.addLast(currentSegment);
+		openSegment();
+		deleteCommittedSegments();
+	}
+
+	/**
+	 * Records that the chunk from firstSequence to lastSequence has been committed or spilled,
+	 *   writing it to the checkpoint and deleting any segments that are now fully committed.
+	 * Sequences between them that aren't in the chunk must already be committed (the gaps in a
+	 *   chunk of recovered views).  A chunk that is never marked committed stays out of the
+	 *   checkpoint, so it is replayed on the next start without holding back the chunks after it.
+	 * @param firstSequence
+	 * @param lastSequence
+	 * @throws IOException if the checkpoint can't be written
+	 */
+	public void markCommitted(long firstSequence, long lastSequence) throws IOException{
+		lock.lock();
+		try{
+			if(isCommitted(firstSequence, lastSequence)){
+				return;
+			}
+			addCommittedRange(firstSequence, lastSequence);
+			writeCheckpoint();
+			deleteCommittedSegments();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a committed range, merging it with any ranges it touches, and moving committedSequence
+	 *   up if it now reaches the first range
+	 */
+	private void addCommittedRange(long firstSequence, long lastSequence){
+		Map.Entry<Long, Long> before = committedRanges.floorEntry(firstSequence);
+		if(before != null && before.getValue() >= firstSequence - 1){
+			firstSequence = before.getKey();
+			lastSequence = Math.max(lastSequence, before.getValue());
+			committedRanges.remove(before.getKey());
+		}
+		Map.Entry<Long, Long> after = committedRanges.ceilingEntry(firstSequence);
+		while(after != null && after.getKey() <= lastSequence + 1){
+			lastSequence = Math.max(lastSequence, after.getValue());
+			committedRanges.remove(after.getKey());
+			after = committedRanges.ceilingEntry(firstSequence);
+		}
+		if(firstSequence <= committedSequence + 1){
+			committedSequence = Math.max(committedSequence, lastSequence);
+		}else{
+			committedRanges.put(firstSequence, lastSequence);
+		}
+	}
+
+	private boolean isCommitted(long firstSequence, long lastSequence){
+		if(lastSequence <= committedSequence){
+			return true;
+		}
+		Map.Entry<Long, Long> range = committedRanges.floorEntry(Math.max(firstSequence, committedSequence + 1));
+		return range != null && range.getValue() >= lastSequence;
+	}
+
+	private void writeCheckpoint() throws IOException{
+		//Write, sync, then rename, so a crash (or power loss) never leaves a half written checkpoint,
+		//  which would replay everything after sequence 0
+		File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try{
+			StringBuilder checkpoint = new StringBuilder();
+			checkpoint.append(committedSequence).append('\n');
+			Iterator<Map.Entry<Long, Long>> rangeIter = committedRanges.entrySet().iterator();
+			while(rangeIter.hasNext()){
+				Map.Entry<Long, Long> range = rangeIter.next();
+				checkpoint.append(range.getKey()).append('-').append(range.getValue()).append('\n');
+			}
+			out.write(checkpoint.toString().getBytes());
+			out.getFD().sync();
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDirectory();
+	}
+
+	/**
+	 * Fsyncs the log directory, so renames and new segment files survive a power loss
+	 */
+	private void syncDirectory(){
+		if(!directorySyncSupported){
+			return;
+		}
+		try{
+			FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try{
+				dir.force(true);
+			}finally{
+				dir.close();
+			}
+		}catch(IOException e){
+			//Some platforms (Windows) can't open or sync a directory, the rename is all we get there
+			directorySyncSupported = false;
+			logger.warn(String.format("Unable to sync write ahead log directory %s: %s", directory.getAbsolutePath(), e.getMessage()));
+		}
+	}
+
+	private void deleteCommittedSegments(){
+		//Not just from the front, a stuck chunk only keeps its own segment around
+		Iterator<Segment> segmentIter = closedSegments.iterator();
+		while(segmentIter.hasNext()){
+			Segment segment = segmentIter.next();
+			if(isCommitted(segment.firstSequence, segment.lastSequence)){
+				segmentIter.remove();
+				if(!segment.file.delete()){
+					logger.error(String.format("Unable to delete committed write ahead log segment %s", segment.file.getAbsolutePath()));
+				}
+			}
+		}
+	}
+
+	public void close() throws IOException{
+		lock.lock();
+		try{
+			sync();
+			currentOut.close();
+		}finally{
+			lock.unlock();
+		}
+	}
+}
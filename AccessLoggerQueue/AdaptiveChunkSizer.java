@@ -0,0 +1,136 @@
+package com.cwilliams.commerce;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Picks the AccessLoggerQueue's chunk size from how its recent chunks went, AIMD style.
+ *
+ * A full chunk that commits within the target latency grows the size by a fixed step, a chunk
+ *   that commits slower than the target or fails halves it, always staying within min/max.
+ *   So a healthy database gets bigger transactions, and a slow or failing one gets small chunks,
+ *   where a bad row rolls back (and spills) less.
+ * Chunks that weren't full don't grow the size, the queue just didn't have more to give.
+ *
+ * Also keeps moving averages of commit latency and failure rate for monitoring.
+ * @author corey
+ *
+ */
+public class AdaptiveChunkSizer {
+	//Weight of the newest chunk in the moving averages
+	private static double AVERAGE_WEIGHT = 0.1;
+
+	private final static Log logger = LogFactory.getLog(AdaptiveChunkSizer.class);
+
+	private final int minSize;
+	private final int maxSize;
+	private final int step;
+	private final long targetNanos;
+
+	private volatile int chunkSize;
+	private double averageLatencyNanos = 0;
+	private double failureRate = 0;
+	private long commits = 0;
+	private long failures = 0;
+
+	/**
+	 * @param initialSize - chunk size to start with, clamped to min/max
+	 * @param minSize
+	 * @param maxSize
+	 * @param step - how much a fast full chunk grows the size by
+	 * @param targetCommitMs - chunks that take longer than this to commit shrink the size
+	 */
+	public AdaptiveChunkSizer(int initialSize, int minSize, int maxSize, int step, long targetCommitMs){
+		if(minSize < 1 || maxSize < minSize){
+			throw new IllegalArgumentException(String.format("Invalid chunk size bounds: %d - %d", minSize, maxSize));
+		}
+		if(step < 1 || targetCommitMs <= 0){
+			throw new IllegalArgumentException("Chunk size step and target commit time must be positive");
+		}
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.step = step;
+		this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetCommitMs);
+		this.chunkSize = Math.max(minSize, Math.min(maxSize, initialSize));
+	}
+
+	/**
+	 * Chunk size the next chunk should be drained at
+	 */
+	public int getChunkSize(){
+		return chunkSize;
+	}
+
+	/**
+	 * Records a chunk that committed
+	 * @param drawnSize - chunk size the chunk was drained at
+	 * @param views - views in the chunk, the chunk was full if this is drawnSize
+	 * @param latencyNanos - time from getting the connection to the commit finishing
+	 */
+	public synchronized void recordCommit(int drawnSize, int views, long latencyNanos){
+		commits++;
+		averageLatencyNanos = (commits == 1) ? latencyNanos : averageLatencyNanos + AVERAGE_WEIGHT * (latencyNanos - averageLatencyNanos);
+		failureRate -= AVERAGE_WEIGHT * failureRate;
+		if(latencyNanos > targetNanos){
+			decrease(drawnSize);
+		}else if(views >= drawnSize){
+			chunkSize = Math.min(maxSize, chunkSize + step);
+		}
+	}
+
+	/**
+	 * Records a chunk that failed and was rolled back
+	 * @param drawnSize - chunk size the chunk was drained at
+	 */
+	public synchronized void recordFailure(int drawnSize){
+		failures++;
+		failureRate += AVERAGE_WEIGHT * (1 - failureRate);
+		decrease(drawnSize);
+	}
+
+	/**
+	 * Halves the chunk size, unless it has already shrunk since the chunk was drawn at drawnSize.
+	 *   Several chunks can be in flight at once, and an outage fails all of them, so this keeps
+	 *   it to one halving per round of chunks.
+	 */
+	private void decrease(int drawnSize){
+		if(drawnSize > chunkSize){
+			return;
+		}
+		int newSize = Math.max(minSize, chunkSize / 2);
+		if(newSize != chunkSize){
+			logger.info(String.format("Shrinking access logger chunk size from %d to %d", chunkSize, newSize));
+			chunkSize = newSize;
+		}
+	}
+
+	public synchronized double getAverageCommitMillis(){
+		return averageLatencyNanos / 1000000.0;
+	}
+	/**
+	 * Moving average of the fraction of chunks that failed
+	 */
+	public synchronized double getFailureRate(){
+		return failureRate;
+	}
+	public synchronized long getCommits(){
+		return commits;
+	}
+	public synchronized long getFailures(){
+		return failures;
+	}
+	public int getMinSize(){
+		return minSize;
+	}
+	public int getMaxSize(){
+		return maxSize;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("AdaptiveChunkSizer[size=%d (%d - %d), avgCommit=%.1fms, failureRate=%.3f]",
+				chunkSize, minSize, maxSize, getAverageCommitMillis(), failureRate);
+	}
+}
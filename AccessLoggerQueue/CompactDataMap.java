@@ -0,0 +1,341 @@
+package com.cwilliams.commerce;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable String to String map backed by two parallel arrays, with the keys kept sorted
+ *   so iteration order matches a TreeMap.
+ * The same few data keys show up on nearly every ProductView, so keys are interned, letting
+ *   every view share a single copy of each key String.
+ * @author corey
+ *
+ */
+public final class CompactDataMap extends AbstractMap<String, String> implements Serializable {
+
+	private static final long serialVersionUID = -4318235437751085312L;
+
+	/**
+	 * Upper bound on the number of distinct keys that will be interned, so that a flood of
+	 *   garbage keys can't grow the intern table forever.  Keys past this are just not shared.
+	 */
+	private static final int MAX_INTERNED_KEYS = 4096;
+	private static final ConcurrentMap<String, String> internedKeys = new ConcurrentHashMap<String, String>();
+
+	private static final String[] NO_STRINGS = new String[0];
+	public static final CompactDataMap EMPTY = new CompactDataMap(NO_STRINGS, NO_STRINGS);
+
+	private final String[] keys;
+	private final String[] values;
+	//Cached, 0 until first computed
+	private transient int hash;
+	private transient Set<Entry<String, String>> entrySet;
+
+	/**
+	 * keys must already be sorted, unique and interned
+	 */
+	private CompactDataMap(String[] keys, String[] values){
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * Returns the shared copy of key, adding it to the intern table if there's room
+	 * @param key
+	 * @return
+	 */
+	static String internKey(String key){
+		String interned = internedKeys.get(key);
+		if(interned != null){
+			return interned;
+		}
+		if(internedKeys.size() >= MAX_INTERNED_KEYS){
+			return key;
+		}
+		interned = internedKeys.putIfAbsent(key, key);
+		return (interned != null) ? interned : key;
+	}
+
+	/**
+	 * Creates a CompactDataMap holding the same mappings as data.
+	 * Null keys or values are not supported.
+	 * @param data
+	 * @return data itself if it is already a CompactDataMap
+	 */
+	public static CompactDataMap copyOf(Map<String, String> data){
+		if(data instanceof CompactDataMap){
+			return (CompactDataMap) data;
+		}
+		if(data == null || data.isEmpty()){
+			return EMPTY;
+		}
+		String[] newKeys = new String[data.size()];
+		String[] newValues = new String[data.size()];
+		int i = 0;
+		Iterator<Entry<String, String>> iter = data.entrySet().iterator();
+		while(iter.hasNext()){
+			Entry<String, String> curEntry = iter.next();
+			if(curEntry.getKey() == null || curEntry.getValue() == null){
+				throw new NullPointerException("CompactDataMap does not support null keys or values");
+			}
+			newKeys[i] = curEntry.getKey();
+			newValues[i] = curEntry.getValue();
+			i++;
+		}
+		//Keys in a map are already unique, no need to drop duplicates
+		return fromArrays(newKeys, newValues, i, false);
+	}
+
+	/**
+	 * Parses a key=value&key2=value2... string, as written by {@link ProductView#getDataAsCSV()}
+	 * Pairs without exactly one '=' are skipped, and the last value wins for repeated keys,
+	 *   just like putting each pair into a TreeMap.
+	 * @param csv
+	 * @return
+	 */
+	public static CompactDataMap fromCSV(String csv){
+		if(csv == null || csv.isEmpty()){
+			return EMPTY;
+		}
+		//Count pairs first so the arrays are only allocated once
+		int maxPairs = 1;
+		for(int i = 0; i < csv.length(); i++){
+			if(csv.charAt(i) == '&'){
+				maxPairs++;
+			}
+		}
+		String[] newKeys = new String[maxPairs];
+		String[] newValues = new String[maxPairs];
+		int count = 0;
+		int start = 0;
+		while(start <= csv.length()){
+			int end = csv.indexOf('&', start);
+			if(end < 0){
+				end = csv.length();
+			}
+			//Same rules as String.split("=") giving exactly 2 parts: trailing '='s are dropped,
+			//  then there must be exactly one '=' left, with a non-empty value after it
+			int pairEnd = end;
+			while(pairEnd > start && csv.charAt(pairEnd - 1) == '='){
+				pairEnd--;
+			}
+			int eq = csv.indexOf('=', start);
+			if(eq >= start && eq < pairEnd && csv.lastIndexOf('=', pairEnd - 1) == eq){
+				newKeys[count] = csv.substring(start, eq);
+				newValues[count] = csv.substring(eq + 1, pairEnd);
+				count++;
+			}
+			start = end + 1;
+		}
+		if(count == 0){
+			return EMPTY;
+		}
+		return fromArrays(newKeys, newValues, count, true);
+	}
+
+	/**
+	 * Sorts the first count entries of keys/values by key, interns the keys and trims the arrays
+	 * @param dedupe - whether repeated keys are possible, in which case the last one wins
+	 */
+	private static CompactDataMap fromArrays(String[] keys, String[] values, int count, boolean dedupe){
+		//Small insertion sort, views only carry a handful of keys. Stable, so the last
+		//  duplicate stays last
+		for(int i = 1; i < count; i++){
+			String key = keys[i];
+			String value = values[i];
+			int j = i - 1;
+			while(j >= 0 && keys[j].compareTo(key) > 0){
+				keys[j + 1] = keys[j];
+				values[j + 1] = values[j];
+				j--;
+			}
+			keys[j + 1] = key;
+			values[j + 1] = value;
+		}
+		int size = count;
+		if(dedupe){
+			size = 0;
+			for(int i = 0; i < count; i++){
+				if(size > 0 && keys[size - 1].equals(keys[i])){
+					values[size - 1] = values[i];
+				}else{
+					keys[size] = keys[i];
+					values[size] = values[i];
+					size++;
+				}
+			}
+		}
+		for(int i = 0; i < size; i++){
+			keys[i] = internKey(keys[i]);
+		}
+		if(size != keys.length){
+			keys = Arrays.copyOf(keys, size);
+			values = Arrays.copyOf(values, size);
+		}
+		return new CompactDataMap(keys, values);
+	}
+
+	private int indexOf(Object key){
+		if(!(key instanceof String)){
+			return -1;
+		}
+		int idx = Arrays.binarySearch(keys, key);
+		return (idx >= 0) ? idx : -1;
+	}
+
+	@Override
+	public int size(){
+		return keys.length;
+	}
+
+	@Override
+	public boolean isEmpty(){
+		return keys.length == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key){
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public String get(Object key){
+		int idx = indexOf(key);
+		return (idx >= 0) ? values[idx] : null;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet(){
+		if(entrySet == null){
+			entrySet = new AbstractSet<Entry<String, String>>(){
+				@Override
+				public Iterator<Entry<String, String>> iterator(){
+					return new Iterator<Entry<String, String>>(){
+						private int next = 0;
+
+						@Override
+						public boolean hasNext(){
+							return next < keys.length;
+						}
+
+						@Override
+						public Entry<String, String> next(){
+							if(next >= keys.length){
+								throw new NoSuchElementException();
+							}
+							Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys[next], values[next]);
+							next++;
+							return entry;
+						}
+
+						@Override
+						public void remove(){
+							throw new UnsupportedOperationException("CompactDataMap is immutable");
+						}
+					};
+				}
+
+				@Override
+				public int size(){
+					return keys.length;
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Appends the map as key=value&key2=value2... to out, without going through entry objects
+	 * @param out
+	 * @return out
+	 */
+	public StringBuilder appendCSV(StringBuilder out){
+		for(int i = 0; i < keys.length; i++){
+			if(i != 0){
+				out.append('&');
+			}
+			out.append(keys[i]).append('=').append(values[i]);
+		}
+		return out;
+	}
+
+	@Override
+	public int hashCode(){
+		int h = hash;
+		if(h == 0 && keys.length != 0){
+			//Same value as AbstractMap.hashCode(), so it matches any other Map with the same entries
+			for(int i = 0; i < keys.length; i++){
+				h += keys[i].hashCode() ^ values[i].hashCode();
+			}
+			hash = h;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object obj){
+		if(this == obj){
+			return true;
+		}
+		if(obj instanceof CompactDataMap){
+			CompactDataMap other = (CompactDataMap) obj;
+			if(keys.length != other.keys.length || hashCode() != other.hashCode()){
+				return false;
+			}
+			//Both sides are sorted, so entries can be compared pairwise
+			for(int i = 0; i < keys.length; i++){
+				if(keys[i] != other.keys[i] && !keys[i].equals(other.keys[i])){
+					return false;
+				}
+				if(!values[i].equals(other.values[i])){
+					return false;
+				}
+			}
+			return true;
+		}
+		return super.equals(obj);
+	}
+
+	/**
+	 * Re-intern the keys after deserialization so that deserialized views share keys too
+	 */
+	private Object readResolve(){
+		if(keys.length == 0){
+			return EMPTY;
+		}
+		for(int i = 0; i < keys.length; i++){
+			keys[i] = internKey(keys[i]);
+		}
+		return this;
+	}
+
+	// Mutators, all unsupported
+
+	@Override
+	public String put(String key, String value){
+		throw new UnsupportedOperationException("CompactDataMap is immutable");
+	}
+
+	@Override
+	public String remove(Object key){
+		throw new UnsupportedOperationException("CompactDataMap is immutable");
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends String> m){
+		throw new UnsupportedOperationException("CompactDataMap is immutable");
+	}
+
+	@Override
+	public void clear(){
+		throw new UnsupportedOperationException("CompactDataMap is immutable");
+	}
+}
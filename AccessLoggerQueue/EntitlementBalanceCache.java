@@ -0,0 +1,384 @@
+package com.cwilliams.commerce;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In-process cache of remaining entitlement units, keyed by entitlementID/userID.
+ *
+ * Views are reserved against the cache when they are enqueued, so {@link remainingUnits} reflects
+ *   them right away, and the matching database decrements are written once per entitlement per
+ *   chunk by {@link writeDecrements}, instead of once per view.
+ * Balances are loaded on demand, and reloaded from the database every RELOAD_INTERVAL_MS, minus
+ *   whatever has been reserved but not yet committed, and whatever was spilled to the error file
+ *   and not yet replayed.  Between reloads the balance is only as accurate as this process's
+ *   view of things, other servers' decrements show up on the next reload.
+ * Chunks this cache counts as spilled are written to the error file with {@link #getSpillComment},
+ *   so replays can tell them apart from chunks spilled before a restart, which it never counted.
+ *
+ * Counters are guarded by a set of striped locks, so enqueues for different entitlements
+ *   rarely contend with each other.
+ * @author corey
+ *
+ */
+public class EntitlementBalanceCache {
+	private static long RELOAD_INTERVAL_MS = 60000;
+	private static long IDLE_EVICT_MS = 600000;
+	private static int LOCK_STRIPES = 64;
+
+	private final static Log logger = LogFactory.getLog(EntitlementBalanceCache.class);
+
+	private static final class Key implements Comparable<Key>{
+		final long entitlementID;
+		final int userID;
+
+		Key(long entitlementID, int userID){
+			this.entitlementID = entitlementID;
+			this.userID = userID;
+		}
+
+		@Override
+		public int hashCode(){
+			int h = (int) (entitlementID ^ (entitlementID >>> 32)) * 31 + userID;
+			//Spread the bits so neighbouring ids land on different stripes
+			return h ^ (h >>> 16);
+		}
+
+		@Override
+		public boolean equals(Object obj){
+			if(!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key) obj;
+			return entitlementID == other.entitlementID && userID == other.userID;
+		}
+
+		@Override
+		public int compareTo(Key other){
+			if(entitlementID != other.entitlementID){
+				return (entitlementID < other.entitlementID) ? -1 : 1;
+			}
+			return (userID < other.userID) ? -1 : ((userID == other.userID) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * All fields are guarded by the key's stripe lock
+	 */
+	private static final class Balance{
+		//Units left as far as this process knows, only valid once loadedAt != 0
+		long units = 0;
+		//Views reserved at enqueue that haven't been committed (or spilled) yet
+		int pending = 0;
+		//Views spilled to the error file, whose decrements aren't in the database until it's replayed
+		int spilled = 0;
+		//Count of views whose decrements have been committed, so a load can tell if any committed while it ran
+		long committed = 0;
+		long loadedAt = 0;
+		long lastUsed = 0;
+	}
+
+	private final Map<Key, Balance> balances = new ConcurrentHashMap<Key, Balance>();
+	//Error file comment marking chunks counted in spilled by this cache, see getSpillComment
+	private final String spillComment = "#Balance spill " + UUID.randomUUID().toString();
+	private final Object[] locks;
+	private long lastEviction = System.currentTimeMillis();
+
+	public EntitlementBalanceCache(){
+		locks = new Object[LOCK_STRIPES];
+		for(int i = 0; i < locks.length; i++){
+			locks[i] = new Object();
+		}
+	}
+
+	private Object lockFor(Key key){
+		return locks[(key.hashCode() & 0x7FFFFFFF) % locks.length];
+	}
+
+	/**
+	 * Reserves a unit for view, and flags the view as reserved so the reservation is released
+	 *   once its decrement is committed.  Never touches the database, so it is safe to call
+	 *   while enqueueing.
+	 * @param view
+	 * @return false if the balance is loaded and was already at 0
+	 */
+	public boolean reserve(ProductView view){
+		Key key = new Key(view.getEntitlementID(), view.getUserID());
+		synchronized(lockFor(key)){
+			Balance balance = balances.get(key);
+			if(balance == null){
+				balance = new Balance();
+				balances.put(key, balance);
+			}
+			balance.pending++;
+			balance.lastUsed = System.currentTimeMillis();
+			view.setBalanceReserved(true);
+			if(balance.loadedAt != 0){
+				if(balance.units > 0){
+					balance.units--;
+					return true;
+				}
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Releases the reservations for views whose decrements have been committed.  Views replayed
+	 *   from a chunk this cache spilled come off the spilled count instead, anything else (views
+	 *   recovered from the write ahead log, or spilled before a restart) was never counted.
+	 * @param views
+	 */
+	public void release(Collection<ProductView> views){
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			boolean reserved = curView.isBalanceReserved();
+			boolean spilled = curView.isBalanceSpilled();
+			curView.setBalanceReserved(false);
+			curView.setBalanceSpilled(false);
+			Key key = new Key(curView.getEntitlementID(), curView.getUserID());
+			synchronized(lockFor(key)){
+				Balance balance = balances.get(key);
+				if(balance == null){
+					continue;
+				}
+				if(reserved && balance.pending > 0){
+					balance.pending--;
+				}else if(spilled && balance.spilled > 0){
+					balance.spilled--;
+				}
+				balance.committed++;
+			}
+		}
+	}
+
+	/**
+	 * Comment to write with a chunk that will be passed to {@link #spill}, or null if not every
+	 *   view in it is reserved.  Only chunks written with it are taken back off the spilled count
+	 *   when replayed.
+	 * @param views
+	 * @return
+	 */
+	public String getSpillComment(Collection<ProductView> views){
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			if(!viewIter.next().isBalanceReserved()){
+				return null;
+			}
+		}
+		return spillComment;
+	}
+
+	/**
+	 * Flags the views of a chunk read back from the error file, if it was written with this
+	 *   cache's spill comment
+	 * @param comments
+	 * @param views
+	 */
+	public void markReplayed(Collection<String> comments, Collection<ProductView> views){
+		if(!comments.contains(spillComment)){
+			return;
+		}
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			viewIter.next().setBalanceSpilled(true);
+		}
+	}
+
+	/**
+	 * Moves reserved views that were spilled to the error file from pending to spilled, so they
+	 *   still count against the balance until the error file is replayed.  The chunk must have been
+	 *   written with {@link #getSpillComment}.
+	 * @param views
+	 */
+	public void spill(Collection<ProductView> views){
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			if(!curView.isBalanceReserved()){
+				continue;
+			}
+			curView.setBalanceReserved(false);
+			Key key = new Key(curView.getEntitlementID(), curView.getUserID());
+			synchronized(lockFor(key)){
+				Balance balance = balances.get(key);
+				if(balance != null){
+					if(balance.pending > 0){
+						balance.pending--;
+					}
+					balance.spilled++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the reservations for views that were neither committed nor spilled
+	 * @param views
+	 */
+	public void discard(Collection<ProductView> views){
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			if(!curView.isBalanceReserved()){
+				continue;
+			}
+			curView.setBalanceReserved(false);
+			Key key = new Key(curView.getEntitlementID(), curView.getUserID());
+			synchronized(lockFor(key)){
+				Balance balance = balances.get(key);
+				if(balance != null && balance.pending > 0){
+					balance.pending--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the units left for the entitlement, loading it from the database if it isn't
+	 *   cached, or was last loaded more than RELOAD_INTERVAL_MS ago
+	 * @param entitlementID
+	 * @param userID
+	 * @return
+	 * @throws SQLException if the balance needed loading and the query failed
+	 */
+	public long remainingUnits(long entitlementID, int userID) throws SQLException{
+		Key key = new Key(entitlementID, userID);
+		long now = System.currentTimeMillis();
+		long committedBefore = 0;
+		synchronized(lockFor(key)){
+			Balance balance = balances.get(key);
+			if(balance != null && balance.loadedAt != 0 && now - balance.loadedAt < RELOAD_INTERVAL_MS){
+				balance.lastUsed = now;
+				return balance.units;
+			}
+			if(balance != null){
+				committedBefore = balance.committed;
+			}
+		}
+		//Query outside of the lock, so enqueues on this stripe don't wait on the database
+		long dbUnits = loadUnits(entitlementID, userID);
+		synchronized(lockFor(key)){
+			Balance balance = balances.get(key);
+			if(balance == null){
+				balance = new Balance();
+				balances.put(key, balance);
+			}
+			//Views released while the query ran are no longer pending, but the query may not have
+			//  seen their commit, so count them as not in dbUnits.  At worst that understates the
+			//  balance until the next reload.
+			long committedDuring = balance.committed - committedBefore;
+			balance.units = Math.max(0, dbUnits - balance.pending - balance.spilled - committedDuring);
+			balance.loadedAt = now;
+			balance.lastUsed = now;
+			return balance.units;
+		}
+	}
+
+	private long loadUnits(long entitlementID, int userID) throws SQLException{
+		final String selectSql = "SELECT UNITS FROM ENTITLEMENTS WHERE ENTITLEMENT_ID = ? AND USER_ID = ?";
+		Connection conn = AccessLoggerQueue.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(selectSql);
+			stmt.setLong(1, entitlementID);
+			stmt.setInt(2, userID);
+			ResultSet rs = stmt.executeQuery();
+			long units = 0;
+			if(rs.next()){
+				units = rs.getLong(1);
+			}
+			rs.close();
+			stmt.close();
+			return units;
+		}finally{
+			conn.close();
+		}
+	}
+
+	/**
+	 * Writes the entitlement decrements for a chunk of views, one UPDATE per entitlement/user
+	 *   instead of one per view.  Runs on conn without committing, so the decrements commit
+	 *   or roll back with the rest of the chunk.
+	 * Rows are updated in entitlementID/userID order, so chunks committing at the same time
+	 *   take their row locks in the same order and can't deadlock.
+	 * Like {@link AccessLoggerQueue#decrementEntitlement}, a failed update is logged, not thrown.
+	 * @param conn
+	 * @param views
+	 * @return false if the update failed
+	 */
+	public static boolean writeDecrements(Connection conn, Collection<ProductView> views){
+		final String updateSql = "UPDATE ENTITLEMENTS SET UNITS = CASE WHEN UNITS > ? THEN UNITS - ? ELSE 0 END " +
+				"WHERE ENTITLEMENT_ID = ? AND UNITS > 0 AND USER_ID = ?";
+		Map<Key, int[]> counts = new TreeMap<Key, int[]>();
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			Key key = new Key(curView.getEntitlementID(), curView.getUserID());
+			int[] count = counts.get(key);
+			if(count == null){
+				counts.put(key, new int[]{1});
+			}else{
+				count[0]++;
+			}
+		}
+		try {
+			PreparedStatement stmt = conn.prepareStatement(updateSql);
+			Iterator<Entry<Key, int[]>> countIter = counts.entrySet().iterator();
+			while(countIter.hasNext()){
+				Entry<Key, int[]> curCount = countIter.next();
+				stmt.setInt(1, curCount.getValue()[0]);
+				stmt.setInt(2, curCount.getValue()[0]);
+				stmt.setLong(3, curCount.getKey().entitlementID);
+				stmt.setInt(4, curCount.getKey().userID);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			stmt.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Drops balances that have nothing pending or spilled and haven't been used in IDLE_EVICT_MS.
+	 * Only does the work once every RELOAD_INTERVAL_MS, so it can be called from the drain loop
+	 */
+	public void evictIdleIfDue(){
+		long now = System.currentTimeMillis();
+		if(now - lastEviction < RELOAD_INTERVAL_MS){
+			return;
+		}
+		lastEviction = now;
+		int evicted = 0;
+		Iterator<Key> keyIter = balances.keySet().iterator();
+		while(keyIter.hasNext()){
+			Key key = keyIter.next();
+			synchronized(lockFor(key)){
+				Balance balance = balances.get(key);
+				if(balance != null && balance.pending == 0 && balance.spilled == 0 && now - balance.lastUsed >= IDLE_EVICT_MS){
+					balances.remove(key);
+					evicted++;
+				}
+			}
+		}
+		if(evicted != 0){
+			logger.info(String.format("Evicted %d idle entitlement balances", evicted));
+		}
+	}
+}
@@ -0,0 +1,569 @@
+package com.cwilliams.commerce;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cuts IP_ACCESSES down to one row per IP address/userID per time window (by debit time), instead
+ *   of one per view.  The first view of a pair in a window writes its row as usual, later views of
+ *   the same pair in that window are only counted.
+ *
+ * Pairs are kept in a compact open addressing set per window, with the packed address from
+ *   {@link ProductView}, so a pair costs a few dozen bytes and no objects.  Views whose address
+ *   couldn't be parsed are never coalesced.
+ *
+ * When hit counting is on, rows are written with the window they belong to (WINDOW_START, in
+ *   epoch millis), HITS = 1 and a WRITER_ID unique to this coalescer.  Once a window closes the
+ *   extra views are added to HITS, matched on the address, user, window and WRITER_ID, so rows
+ *   written by other servers, or by this one before a restart, are never touched.  A row that
+ *   isn't there yet (its chunk is still waiting in the error file) matches nothing, so its pair
+ *   is retried on later flushes, for up to HIT_RETRY_MS after the window closed.
+ * Once a window closes only the pairs with hits still to write are kept.  A view that turns up
+ *   for a closed window is counted if its pair is still kept, otherwise it writes its own row
+ *   with HITS = 1 and no WRITER_ID, so SUM(HITS) still counts every view.
+ * @author corey
+ *
+ */
+public class IpAccessCoalescer {
+	//How often closed windows with hits still to write are flushed
+	private static long HIT_FLUSH_INTERVAL_MS = 1000;
+	//How long after a window closes its pairs with unwritten hits are retried
+	private static long HIT_RETRY_MS = 3600000;
+
+	//What shouldWrite did with a view, kept on the view for rollback
+	static final byte NOT_COUNTED = 0;
+	static final byte COUNTED = 1;
+	static final byte ROW_WRITER = 2;
+
+	private final static Log logger = LogFactory.getLog(IpAccessCoalescer.class);
+
+	/**
+	 * One window's worth of pairs, in parallel arrays.  hits holds the view count plus one,
+	 *   so a slot is free while its hits are 0, and a claimed slot can go back to no views
+	 */
+	static class PairSet{
+		private static final float LOAD_FACTOR = 0.5f;
+
+		private byte[] versions;
+		private long[] highs;
+		private long[] lows;
+		private int[] users;
+		private int[] hits;
+		//Whether a view has (or is about to have) written the pair's row
+		private boolean[] written;
+		//Extra views already added to the row's HITS
+		private int[] flushed;
+		private int size = 0;
+		//Whether anything changed since the last hit flush
+		private boolean dirty = false;
+
+		PairSet(){
+			allocate(64);
+		}
+
+		private void allocate(int capacity){
+			versions = new byte[capacity];
+			highs = new long[capacity];
+			lows = new long[capacity];
+			users = new int[capacity];
+			hits = new int[capacity];
+			written = new boolean[capacity];
+			flushed = new int[capacity];
+		}
+
+		private static int hash(int version, long high, long low, int user){
+			long h = (high * 31 + low) * 31 + user * 0x9E3779B97F4A7C15L + version;
+			h *= 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		/**
+		 * Returns the slot for the pair, or -1 if it isn't in the set
+		 */
+		int find(int version, long high, long low, int user){
+			int mask = versions.length - 1;
+			int slot = hash(version, high, low, user) & mask;
+			while(hits[slot] != 0){
+				if(versions[slot] == version && highs[slot] == high && lows[slot] == low && users[slot] == user){
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the slot for the pair, claiming a free one if it isn't in the set yet
+		 */
+		int slotFor(int version, long high, long low, int user){
+			if(size + 1 > versions.length * LOAD_FACTOR){
+				rehash();
+			}
+			int mask = versions.length - 1;
+			int slot = hash(version, high, low, user) & mask;
+			while(hits[slot] != 0){
+				if(versions[slot] == version && highs[slot] == high && lows[slot] == low && users[slot] == user){
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			versions[slot] = (byte) version;
+			highs[slot] = high;
+			lows[slot] = low;
+			users[slot] = user;
+			hits[slot] = 1;
+			written[slot] = false;
+			flushed[slot] = 0;
+			size++;
+			return slot;
+		}
+
+		/**
+		 * Views not yet added to the row's HITS: every view, less the one that wrote the row
+		 *   with HITS = 1, less what's been flushed.  Negative if flushed views were rolled back since.
+		 */
+		int unflushedHits(int slot){
+			return (hits[slot] - 1) - (written[slot] ? 1 : 0) - flushed[slot];
+		}
+
+		/**
+		 * Copy of the set with only the pairs that still have hits to write, null if there are none
+		 */
+		PairSet compact(){
+			PairSet kept = null;
+			for(int i = 0; i < hits.length; i++){
+				if(hits[i] != 0 && unflushedHits(i) != 0){
+					if(kept == null){
+						kept = new PairSet();
+					}
+					int slot = kept.slotFor(versions[i], highs[i], lows[i], users[i]);
+					kept.hits[slot] = hits[i];
+					kept.written[slot] = written[i];
+					kept.flushed[slot] = flushed[i];
+				}
+			}
+			if(kept != null){
+				kept.dirty = dirty;
+			}
+			return kept;
+		}
+
+		private void rehash(){
+			byte[] oldVersions = versions;
+			long[] oldHighs = highs;
+			long[] oldLows = lows;
+			int[] oldUsers = users;
+			int[] oldHits = hits;
+			boolean[] oldWritten = written;
+			int[] oldFlushed = flushed;
+			allocate(oldVersions.length << 1);
+			int mask = versions.length - 1;
+			for(int i = 0; i < oldVersions.length; i++){
+				if(oldHits[i] != 0){
+					int slot = hash(oldVersions[i], oldHighs[i], oldLows[i], oldUsers[i]) & mask;
+					while(hits[slot] != 0){
+						slot = (slot + 1) & mask;
+					}
+					versions[slot] = oldVersions[i];
+					highs[slot] = oldHighs[i];
+					lows[slot] = oldLows[i];
+					users[slot] = oldUsers[i];
+					hits[slot] = oldHits[i];
+					written[slot] = oldWritten[i];
+					flushed[slot] = oldFlushed[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * A hit update taken from a PairSet, so the set can keep changing while it's written
+	 */
+	private static class HitUpdate{
+		final long windowStart;
+		final int version;
+		final long high;
+		final long low;
+		final int user;
+		final int hits;
+
+		HitUpdate(long windowStart, PairSet pairs, int slot, int hits){
+			this.windowStart = windowStart;
+			this.version = pairs.versions[slot];
+			this.high = pairs.highs[slot];
+			this.low = pairs.lows[slot];
+			this.user = pairs.users[slot];
+			this.hits = hits;
+		}
+	}
+
+	private final long windowMs;
+	private final boolean countHits;
+	//Written with each row this coalescer counts hits against, so updates only match its own rows
+	private final String writerId = UUID.randomUUID().toString();
+	//Window start -> pairs seen in that window, only those with hits to write once it's closed
+	private final TreeMap<Long, PairSet> windows = new TreeMap<Long, PairSet>();
+	//Windows starting at or before this are closed, no new pairs are added to them
+	private long closedThrough = Long.MIN_VALUE;
+	//Windows starting before this have been dropped altogether
+	private long droppedBefore = Long.MIN_VALUE;
+	private boolean flushing = false;
+	private long lastFlush = 0;
+
+	/**
+	 * @param windowMs - length of a coalescing window
+	 * @param countHits - whether to keep HITS up to date for pairs seen more than once in a window
+	 */
+	public IpAccessCoalescer(long windowMs, boolean countHits){
+		if(windowMs <= 0){
+			throw new IllegalArgumentException("IP coalescing window must be positive");
+		}
+		this.windowMs = windowMs;
+		this.countHits = countHits;
+	}
+
+	private static long high(ProductView view){
+		return (view.getIpVersion() == IpAddressParser.IPV6) ? view.getIPv6AddressHigh() : 0L;
+	}
+
+	private static long low(ProductView view){
+		return (view.getIpVersion() == IpAddressParser.IPV6) ? view.getIPv6AddressLow() : view.getIPv4Address();
+	}
+
+	private long windowStart(ProductView view){
+		return view.getDebitTime() - Math.floorMod(view.getDebitTime(), windowMs);
+	}
+
+	private boolean isClosed(long windowStart, long now){
+		return windowStart + 2 * windowMs <= now;
+	}
+
+	/**
+	 * Counts the view, and returns whether it should write an IP_ACCESSES row, which is when
+	 *   no other view has written one for its address/user in its window
+	 * @param view
+	 * @return
+	 */
+	public synchronized boolean shouldWrite(ProductView view){
+		view.setIpCoalesceState(NOT_COUNTED);
+		if(view.getIpVersion() == IpAddressParser.NONE){
+			return true;
+		}
+		long windowStart = windowStart(view);
+		PairSet pairs = windows.get(windowStart);
+		int slot;
+		if(windowStart <= closedThrough){
+			//Only pairs with hits still to write are kept, anything else is too late to coalesce
+			//  and gets a row of its own
+			slot = (pairs == null) ? -1 : pairs.find(view.getIpVersion(), high(view), low(view), view.getUserID());
+			if(slot < 0){
+				return true;
+			}
+		}else{
+			if(pairs == null){
+				pairs = new PairSet();
+				windows.put(windowStart, pairs);
+			}
+			slot = pairs.slotFor(view.getIpVersion(), high(view), low(view), view.getUserID());
+		}
+		pairs.hits[slot]++;
+		pairs.dirty = true;
+		if(!pairs.written[slot]){
+			pairs.written[slot] = true;
+			view.setIpCoalesceState(ROW_WRITER);
+			return true;
+		}
+		view.setIpCoalesceState(COUNTED);
+		return false;
+	}
+
+	/**
+	 * Writes the IP_ACCESSES row for a view {@link shouldWrite} returned true for.  With hit counting
+	 *   on, the row carries its window and starts at HITS = 1, and rows hits will be added to carry
+	 *   this coalescer's WRITER_ID.
+	 * @param conn
+	 * @param view
+	 * @throws SQLException
+	 */
+	public void writeRow(Connection conn, ProductView view) throws SQLException{
+		if(!countHits){
+			AccessLoggerQueue.writeIpLogEntry(conn, view);
+			return;
+		}
+		final String insertIpLogSql = "INSERT INTO IP_ACCESSES (IP_ADDRESS, USER_ID, TSTAMP, WINDOW_START, WRITER_ID, HITS) VALUES (?, ?, ?, ?, ?, 1)";
+		PreparedStatement stmt = conn.prepareStatement(insertIpLogSql);
+		stmt.setString(1, view.getIpAddress());
+		stmt.setInt(2, view.getUserID());
+		stmt.setTimestamp(3, new Timestamp(view.getDebitTime()));
+		stmt.setLong(4, windowStart(view));
+		if(view.getIpCoalesceState() == ROW_WRITER){
+			stmt.setString(5, writerId);
+		}else{
+			//A row of its own, nothing is ever added to it
+			stmt.setNull(5, Types.VARCHAR);
+		}
+		stmt.execute();
+		stmt.close();
+	}
+
+	/**
+	 * Undoes {@link shouldWrite} for views whose chunk was rolled back
+	 * @param counted - every view shouldWrite was called for
+	 */
+	public synchronized void rollback(Collection<ProductView> counted){
+		Iterator<ProductView> viewIter = counted.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			byte state = curView.getIpCoalesceState();
+			curView.setIpCoalesceState(NOT_COUNTED);
+			long windowStart = windowStart(curView);
+			if(state == NOT_COUNTED || windowStart < droppedBefore){
+				continue;
+			}
+			PairSet pairs = windows.get(windowStart);
+			int slot = (pairs == null) ? -1 : pairs.find(curView.getIpVersion(), high(curView), low(curView), curView.getUserID());
+			if(slot < 0){
+				if(state == ROW_WRITER){
+					//Compacted away with nothing to write, the row's replay writes one of its own
+					continue;
+				}
+				//Compacted away after this view's hit was added to the row, so it has to come
+				//  back off.  The flushed count starts at -1 to offset written, for no hits pending
+				if(pairs == null){
+					pairs = new PairSet();
+					windows.put(windowStart, pairs);
+				}
+				slot = pairs.slotFor(curView.getIpVersion(), high(curView), low(curView), curView.getUserID());
+				pairs.written[slot] = true;
+				pairs.flushed[slot] = -1;
+			}
+			if(pairs.hits[slot] > 1){
+				pairs.hits[slot]--;
+			}else{
+				pairs.flushed[slot]++;
+			}
+			if(state == ROW_WRITER){
+				pairs.written[slot] = false;
+			}
+			pairs.dirty = true;
+		}
+	}
+
+	/**
+	 * Closes windows a full window after they ended (to allow for late views), and drops them then
+	 *   without hit counting, or HIT_RETRY_MS after that with it.
+	 * @param now
+	 * @return whether closed windows have hits to write, and a flush is due
+	 */
+	public synchronized boolean expireWindows(long now){
+		closedThrough = Math.max(closedThrough, now - 2 * windowMs);
+		long keepFor = 2 * windowMs + (countHits ? HIT_RETRY_MS : 0);
+		while(!windows.isEmpty() && windows.firstKey() + keepFor <= now){
+			Entry<Long, PairSet> window = windows.pollFirstEntry();
+			droppedBefore = window.getKey() + windowMs;
+			if(countHits){
+				PairSet pairs = window.getValue();
+				int unwritten = 0;
+				for(int i = 0; i < pairs.hits.length; i++){
+					if(pairs.hits[i] != 0 && pairs.unflushedHits(i) != 0){
+						unwritten++;
+					}
+				}
+				if(unwritten != 0){
+					logger.error(String.format("Giving up on IP access hit counts for %d pairs in window %d, their rows never showed up",
+							unwritten, window.getKey()));
+				}
+			}
+		}
+		if(!countHits || flushing || now - lastFlush < HIT_FLUSH_INTERVAL_MS){
+			return false;
+		}
+		Iterator<Entry<Long, PairSet>> windowIter = windows.entrySet().iterator();
+		while(windowIter.hasNext()){
+			Entry<Long, PairSet> window = windowIter.next();
+			if(!isClosed(window.getKey(), now)){
+				break;
+			}
+			if(window.getValue().dirty){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the views not yet counted in HITS, for every pair in the closed windows, in its own
+	 *   transaction.  Pairs whose row isn't there yet are retried on the next flush, the rest are
+	 *   dropped from the closed windows.
+	 * @param conn
+	 * @param now
+	 * @return the number of rows updated, -1 on failure
+	 */
+	public int writeHitCounts(Connection conn, long now){
+		List<HitUpdate> updates = new ArrayList<HitUpdate>();
+		synchronized(this){
+			if(flushing){
+				return 0;
+			}
+			flushing = true;
+			lastFlush = now;
+			Iterator<Entry<Long, PairSet>> windowIter = windows.entrySet().iterator();
+			while(windowIter.hasNext()){
+				Entry<Long, PairSet> window = windowIter.next();
+				if(!isClosed(window.getKey(), now)){
+					break;
+				}
+				PairSet pairs = window.getValue();
+				if(!pairs.dirty){
+					continue;
+				}
+				pairs.dirty = false;
+				for(int i = 0; i < pairs.hits.length; i++){
+					int hits = (pairs.hits[i] != 0) ? pairs.unflushedHits(i) : 0;
+					if(hits != 0){
+						updates.add(new HitUpdate(window.getKey(), pairs, i, hits));
+					}
+				}
+			}
+		}
+		int[] results = null;
+		try{
+			if(!updates.isEmpty()){
+				results = writeUpdates(conn, updates);
+			}
+		}catch(SQLException e){
+			logger.error(String.format("Unable to write IP access hit counts, will retry: %s", e.getMessage()));
+			e.printStackTrace();
+		}
+		int rows = 0;
+		synchronized(this){
+			flushing = false;
+			for(int i = 0; i < updates.size(); i++){
+				HitUpdate update = updates.get(i);
+				PairSet pairs = windows.get(update.windowStart);
+				if(pairs == null){
+					continue;
+				}
+				if(results != null && (results[i] > 0 || results[i] == Statement.SUCCESS_NO_INFO)){
+					int slot = pairs.slotFor(update.version, update.high, update.low, update.user);
+					pairs.flushed[slot] += update.hits;
+					rows++;
+				}else{
+					//Failed, or the row isn't there yet
+					pairs.dirty = true;
+				}
+			}
+			Iterator<Entry<Long, PairSet>> windowIter = windows.entrySet().iterator();
+			while(windowIter.hasNext()){
+				Entry<Long, PairSet> window = windowIter.next();
+				if(!isClosed(window.getKey(), now)){
+					break;
+				}
+				PairSet kept = window.getValue().compact();
+				if(kept == null){
+					windowIter.remove();
+				}else{
+					window.setValue(kept);
+				}
+			}
+		}
+		return (results == null && !updates.isEmpty()) ? -1 : rows;
+	}
+
+	/**
+	 * Closes every window and writes out the hits not yet in HITS, for shutdown.  Pairs whose
+	 *   row isn't there yet can't be waited for, so their hits are lost.
+	 * @param conn
+	 * @return the number of pairs whose hits couldn't be written
+	 */
+	public int flushAll(Connection conn){
+		if(!countHits){
+			return 0;
+		}
+		synchronized(this){
+			closedThrough = Math.max(closedThrough, System.currentTimeMillis());
+		}
+		writeHitCounts(conn, Long.MAX_VALUE);
+		synchronized(this){
+			//writeHitCounts took MAX_VALUE as the flush time, let a restarted handler flush again
+			lastFlush = 0;
+			int unwritten = 0;
+			Iterator<PairSet> windowIter = windows.values().iterator();
+			while(windowIter.hasNext()){
+				PairSet pairs = windowIter.next();
+				for(int i = 0; i < pairs.hits.length; i++){
+					if(pairs.hits[i] != 0 && pairs.unflushedHits(i) != 0){
+						unwritten++;
+					}
+				}
+			}
+			return unwritten;
+		}
+	}
+
+	private int[] writeUpdates(Connection conn, List<HitUpdate> updates) throws SQLException{
+		final String updateHitsSql = "UPDATE IP_ACCESSES SET HITS = HITS + ? WHERE IP_ADDRESS = ? AND USER_ID = ? AND WINDOW_START = ? AND WRITER_ID = ?";
+		try{
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement(updateHitsSql);
+			StringBuilder address = new StringBuilder(39);
+			for(int i = 0; i < updates.size(); i++){
+				HitUpdate update = updates.get(i);
+				address.setLength(0);
+				if(update.version == IpAddressParser.IPV6){
+					IpAddressParser.appendIPv6(address, update.high, update.low);
+				}else{
+					IpAddressParser.appendIPv4(address, (int) update.low);
+				}
+				stmt.setInt(1, update.hits);
+				stmt.setString(2, address.toString());
+				stmt.setInt(3, update.user);
+				stmt.setLong(4, update.windowStart);
+				stmt.setString(5, writerId);
+				stmt.addBatch();
+			}
+			int[] results = stmt.executeBatch();
+			stmt.close();
+			conn.commit();
+			conn.setAutoCommit(true);
+			return results;
+		}catch(SQLException e){
+			conn.rollback();
+			conn.setAutoCommit(true);
+			throw e;
+		}
+	}
+
+	/**
+	 * Number of address/user pairs being tracked across all windows
+	 */
+	public synchronized int getTrackedPairs(){
+		int pairs = 0;
+		Iterator<PairSet> windowIter = windows.values().iterator();
+		while(windowIter.hasNext()){
+			pairs += windowIter.next().size;
+		}
+		return pairs;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("IpAccessCoalescer[windowMs=%d, countHits=%b, windows=%s]",
+				windowMs, countHits, Arrays.toString(windows.keySet().toArray()));
+	}
+}
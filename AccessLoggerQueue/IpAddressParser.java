@@ -0,0 +1,291 @@
+package com.cwilliams.commerce;
+
+/**
+ * Parses IPv4 and IPv6 addresses from text into packed numeric form, without allocating.
+ * IPv4 addresses are packed into an int, IPv6 addresses into two longs (high and low 64 bits).
+ *
+ * A parser holds the result of the last parse, so one instance can't be shared between threads,
+ *   use {@link #forCurrentThread()} to get a per-thread instance.
+ * @author corey
+ *
+ */
+public final class IpAddressParser {
+
+	public static final int NONE = 0;
+	public static final int IPV4 = 4;
+	public static final int IPV6 = 6;
+
+	private static final ThreadLocal<IpAddressParser> parsers = new ThreadLocal<IpAddressParser>(){
+		@Override
+		protected IpAddressParser initialValue(){
+			return new IpAddressParser();
+		}
+	};
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private int version = NONE;
+	private int ipv4;
+	private long ipv6High;
+	private long ipv6Low;
+
+	public static IpAddressParser forCurrentThread(){
+		return parsers.get();
+	}
+
+	/**
+	 * Version of the last successfully parsed address, {@link #NONE} if the last parse failed
+	 */
+	public int getVersion(){
+		return version;
+	}
+	public int getIPv4(){
+		return ipv4;
+	}
+	public long getIPv6High(){
+		return ipv6High;
+	}
+	public long getIPv6Low(){
+		return ipv6Low;
+	}
+
+	/**
+	 * Parses address as either an IPv4 dotted quad, or an IPv6 address (including the '::'
+	 *   shorthand and a trailing dotted quad).  Zone ids ('%eth0') are not supported.
+	 * @param address
+	 * @return the version that was parsed, or {@link #NONE} if address isn't a valid address
+	 */
+	public int parse(CharSequence address){
+		version = NONE;
+		if(address == null || address.length() == 0){
+			return NONE;
+		}
+		int len = address.length();
+		for(int i = 0; i < len; i++){
+			if(address.charAt(i) == ':'){
+				if(parseIPv6(address, len)){
+					version = IPV6;
+				}
+				return version;
+			}
+		}
+		long v4 = parseIPv4(address, 0, len);
+		if(v4 >= 0){
+			ipv4 = (int) v4;
+			version = IPV4;
+		}
+		return version;
+	}
+
+	/**
+	 * Parses a dotted quad between start and end.  Octets with leading zeros are rejected,
+	 *   since some tools read those as octal.
+	 * @return the address as an unsigned 32 bit value, or -1 if it isn't valid
+	 */
+	static long parseIPv4(CharSequence s, int start, int end){
+		long result = 0;
+		int octets = 0;
+		int pos = start;
+		while(octets < 4){
+			int octet = 0;
+			int digits = 0;
+			while(pos < end){
+				char c = s.charAt(pos);
+				if(c < '0' || c > '9'){
+					break;
+				}
+				if(digits == 1 && octet == 0){
+					return -1;
+				}
+				octet = octet * 10 + (c - '0');
+				digits++;
+				pos++;
+				if(digits > 3 || octet > 255){
+					return -1;
+				}
+			}
+			if(digits == 0){
+				return -1;
+			}
+			result = (result << 8) | octet;
+			octets++;
+			if(octets < 4){
+				if(pos >= end || s.charAt(pos) != '.'){
+					return -1;
+				}
+				pos++;
+			}
+		}
+		return (pos == end) ? result : -1;
+	}
+
+	private static int hexValue(char c){
+		if(c >= '0' && c <= '9'){
+			return c - '0';
+		}
+		if(c >= 'a' && c <= 'f'){
+			return c - 'a' + 10;
+		}
+		if(c >= 'A' && c <= 'F'){
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	/**
+	 * Groups before a '::' are placed directly at their index, groups after it are shifted
+	 *   into a right aligned tail, which is OR'd in at the end.
+	 */
+	private boolean parseIPv6(CharSequence s, int len){
+		long headHigh = 0, headLow = 0;
+		long tailHigh = 0, tailLow = 0;
+		int groups = 0;
+		boolean compressed = false;
+		int pos = 0;
+
+		if(len >= 2 && s.charAt(0) == ':' && s.charAt(1) == ':'){
+			compressed = true;
+			pos = 2;
+		}else if(s.charAt(0) == ':'){
+			return false;
+		}
+
+		while(pos < len){
+			int groupStart = pos;
+			int group = 0;
+			int digits = 0;
+			while(pos < len){
+				int v = hexValue(s.charAt(pos));
+				if(v < 0){
+					break;
+				}
+				group = (group << 4) | v;
+				digits++;
+				pos++;
+				if(digits > 4){
+					return false;
+				}
+			}
+			int groupCount = 1;
+			long v4 = -1;
+			if(pos < len && s.charAt(pos) == '.'){
+				//Trailing dotted quad, takes up the last two groups
+				v4 = parseIPv4(s, groupStart, len);
+				if(v4 < 0){
+					return false;
+				}
+				pos = len;
+				groupCount = 2;
+			}else if(digits == 0){
+				return false;
+			}
+			if(groups + groupCount > (compressed ? 7 : 8)){
+				return false;
+			}
+			for(int g = 0; g < groupCount; g++){
+				long value;
+				if(groupCount == 2){
+					value = (g == 0) ? (v4 >>> 16) : (v4 & 0xFFFF);
+				}else{
+					value = group;
+				}
+				if(compressed){
+					tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+					tailLow = (tailLow << 16) | value;
+				}else if(groups < 4){
+					headHigh |= value << (16 * (3 - groups));
+				}else{
+					headLow |= value << (16 * (7 - groups));
+				}
+				groups++;
+			}
+			if(pos == len){
+				break;
+			}
+			if(s.charAt(pos) != ':'){
+				return false;
+			}
+			pos++;
+			if(pos < len && s.charAt(pos) == ':'){
+				//Only one '::', and it has to stand for at least one group
+				if(compressed || groups >= 8){
+					return false;
+				}
+				compressed = true;
+				pos++;
+			}else if(pos == len){
+				//Trailing single ':'
+				return false;
+			}
+		}
+		if(!compressed && groups != 8){
+			return false;
+		}
+		ipv6High = headHigh | tailHigh;
+		ipv6Low = headLow | tailLow;
+		return true;
+	}
+
+	public static StringBuilder appendIPv4(StringBuilder out, int address){
+		out.append((address >>> 24) & 0xFF).append('.')
+			.append((address >>> 16) & 0xFF).append('.')
+			.append((address >>> 8) & 0xFF).append('.')
+			.append(address & 0xFF);
+		return out;
+	}
+
+	private static int ipv6Group(long high, long low, int index){
+		if(index < 4){
+			return (int) ((high >>> (16 * (3 - index))) & 0xFFFF);
+		}
+		return (int) ((low >>> (16 * (7 - index))) & 0xFFFF);
+	}
+
+	/**
+	 * Appends the canonical (RFC 5952) text form of an IPv6 address: lowercase, no leading
+	 *   zeros, and the longest run of two or more zero groups replaced with '::'
+	 *   IPv4 mapped addresses are written as ::ffff:a.b.c.d
+	 */
+	public static StringBuilder appendIPv6(StringBuilder out, long high, long low){
+		if(high == 0 && (low >>> 32) == 0xFFFFL){
+			out.append("::ffff:");
+			return appendIPv4(out, (int) low);
+		}
+		int bestStart = -1, bestLen = 1;
+		int runStart = -1;
+		for(int i = 0; i <= 8; i++){
+			if(i < 8 && ipv6Group(high, low, i) == 0){
+				if(runStart < 0){
+					runStart = i;
+				}
+			}else if(runStart >= 0){
+				if(i - runStart > bestLen){
+					bestStart = runStart;
+					bestLen = i - runStart;
+				}
+				runStart = -1;
+			}
+		}
+		for(int i = 0; i < 8; i++){
+			if(i == bestStart){
+				out.append("::");
+				i += bestLen - 1;
+				continue;
+			}
+			if(i != 0 && i != bestStart + bestLen){
+				out.append(':');
+			}
+			int group = ipv6Group(high, low, i);
+			boolean leading = true;
+			for(int shift = 12; shift >= 0; shift -= 4){
+				int digit = (group >>> shift) & 0xF;
+				if(leading && digit == 0 && shift != 0){
+					continue;
+				}
+				leading = false;
+				out.append(HEX_DIGITS[digit]);
+			}
+		}
+		return out;
+	}
+}
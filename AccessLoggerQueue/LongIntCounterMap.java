@@ -0,0 +1,152 @@
+package com.cwilliams.commerce;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map of primitive long keys to int counts, for counting without
+ *   boxing a Long and an Integer per key.  Not thread safe.
+ *
+ * Iterate with slots: for(int slot = map.nextSlot(0); slot >= 0; slot = map.nextSlot(slot + 1))
+ * @author corey
+ *
+ */
+public class LongIntCounterMap {
+	private static final long FREE = Long.MIN_VALUE;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int[] counts;
+	private int size = 0;
+	private int resizeAt;
+	//FREE marks an empty slot, so a key equal to FREE is kept to one side
+	private boolean hasFreeKey = false;
+	private int freeKeyCount = 0;
+
+	public LongIntCounterMap(){
+		this(64);
+	}
+
+	public LongIntCounterMap(int expectedSize){
+		int capacity = Integer.highestOneBit(Math.max(8, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity){
+		keys = new long[capacity];
+		Arrays.fill(keys, FREE);
+		counts = new int[capacity];
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int slotFor(long key, int mask){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Adds delta to the count for key
+	 * @param key
+	 * @param delta
+	 * @return the new count
+	 */
+	public int add(long key, int delta){
+		if(key == FREE){
+			if(!hasFreeKey){
+				hasFreeKey = true;
+				size++;
+			}
+			freeKeyCount += delta;
+			return freeKeyCount;
+		}
+		int mask = keys.length - 1;
+		int slot = slotFor(key, mask);
+		while(keys[slot] != FREE){
+			if(keys[slot] == key){
+				counts[slot] += delta;
+				return counts[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		counts[slot] = delta;
+		size++;
+		if(size > resizeAt){
+			rehash(keys.length << 1);
+		}
+		return delta;
+	}
+
+	public int get(long key){
+		if(key == FREE){
+			return freeKeyCount;
+		}
+		int mask = keys.length - 1;
+		int slot = slotFor(key, mask);
+		while(keys[slot] != FREE){
+			if(keys[slot] == key){
+				return counts[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	private void rehash(int capacity){
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldKeys[i] != FREE){
+				int slot = slotFor(oldKeys[i], mask);
+				while(keys[slot] != FREE){
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/**
+	 * Returns the first used slot at or after slot, or -1 if there are none left
+	 */
+	public int nextSlot(int slot){
+		for(int i = slot; i < keys.length; i++){
+			if(keys[i] != FREE){
+				return i;
+			}
+		}
+		//The FREE key lives just past the end of the table
+		if(hasFreeKey && slot <= keys.length){
+			return keys.length;
+		}
+		return -1;
+	}
+
+	public long keyAt(int slot){
+		return (slot == keys.length) ? FREE : keys[slot];
+	}
+
+	public int countAt(int slot){
+		return (slot == keys.length) ? freeKeyCount : counts[slot];
+	}
+
+	/**
+	 * Adds every count in other into this map
+	 * @param other
+	 */
+	public void addAll(LongIntCounterMap other){
+		for(int slot = other.nextSlot(0); slot >= 0; slot = other.nextSlot(slot + 1)){
+			add(other.keyAt(slot), other.countAt(slot));
+		}
+	}
+}
@@ -1,10 +1,11 @@
 package com.cwilliams.commerce;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 public class ProductView implements Serializable {
 
@@ -13,8 +14,26 @@ public class ProductView implements Serializable {
 	private int  productID		= 0;
 	private long debitTime      = 0L;
 	private int userID  		= 0;
+	/**
+	 * IP address as given, only kept when it couldn't be parsed (ipVersion is NONE)
+	 */
 	private String ipAddress = "";
-	private Map<String, String> data;
+	//Packed IP address, either ipv4, or ipv6High/ipv6Low depending on ipVersion
+	private byte ipVersion		= IpAddressParser.NONE;
+	private int ipv4			= 0;
+	private long ipv6High		= 0L;
+	private long ipv6Low		= 0L;
+	private CompactDataMap data;
+	//Completed once the view is committed or spilled, only set for views queued with enqueueAsync
+	private transient CompletableFuture<AccessLoggerQueue.Durability> durabilityFuture;
+	//Sequence number in the write ahead log, 0 if the view was not logged
+	private transient long walSequence = 0L;
+	//Whether a unit was reserved for this view in the EntitlementBalanceCache
+	private transient boolean balanceReserved = false;
+	//Whether this view was read back from a chunk the EntitlementBalanceCache counted as spilled
+	private transient boolean balanceSpilled = false;
+	//How the IpAccessCoalescer handled this view, one of its NOT_COUNTED/COUNTED/ROW_WRITER
+	private transient byte ipCoalesceState = 0;
 	
 	public ProductView(){
 		super();
@@ -62,16 +81,8 @@ public class ProductView implements Serializable {
 	}
 	
 	private Map<String, String> csvToData(String csv){
-		//Use a TreeMap to have the keys sorted
-		Map<String, String> newData = new TreeMap<String, String>();
-		String[] keyVals = csv.split("&");
-		for(int i = 0; i < keyVals.length; i++){
-			String[] keyVal = keyVals[i].split("=");
-			if(keyVal.length == 2){
-				newData.put(keyVal[0], keyVal[1]);
-			}
-		}
-		return newData;
+		//CompactDataMap keeps the keys sorted, same as the old TreeMap
+		return CompactDataMap.fromCSV(csv);
 	}
 	
 	/**
@@ -98,34 +109,30 @@ public class ProductView implements Serializable {
 	}
 	
 	public String getDataAsCSV(){
-		//TODO: sort csv by key name
-		StringBuilder ret = new StringBuilder("");
-		
-		Iterator<Entry<String, String>> iter = getData().entrySet().iterator();
-		boolean firstKey = true;
-		while(iter.hasNext()){
-			Entry<String, String> curEntry = iter.next();
-			if(!firstKey){
-				ret.append('&');
-			}else{
-				firstKey = false;
-			}
-			ret.append(curEntry.getKey()).append('=').append(curEntry.getValue());
-		}
-		
-		return ret.toString();
+		//Keys are sorted by the CompactDataMap
+		return getData().appendCSV(new StringBuilder()).toString();
 	}
 	
-	public Map<String, String> getData(){
+	/**
+	 * Returns the data for this view, sorted by key.
+	 * The returned map is immutable, use {@link #setData(Map)} to change it
+	 * @return
+	 */
+	public CompactDataMap getData(){
 		if(data == null){
-			//Use a TreeMap to have the keys sorted
-			data = new TreeMap<String, String>();
+			return CompactDataMap.EMPTY;
 		}
 		return data;
 	}
 	
+	/**
+	 * Sets the data for this view, copying it into a compact immutable map, so later changes
+	 *   to the passed in map are not seen by this view
+	 * @param data
+	 * @return
+	 */
 	public ProductView setData(Map<String, String> data){
-		this.data = data;
+		this.data = CompactDataMap.copyOf(data);
 		return this;
 	}
 
@@ -149,6 +156,80 @@ public class ProductView implements Serializable {
 		return this;
 	}
 
+	CompletableFuture<AccessLoggerQueue.Durability> getDurabilityFuture() {
+		return durabilityFuture;
+	}
+
+	void setDurabilityFuture(CompletableFuture<AccessLoggerQueue.Durability> durabilityFuture) {
+		this.durabilityFuture = durabilityFuture;
+	}
+
+	long getWalSequence() {
+		return walSequence;
+	}
+
+	void setWalSequence(long walSequence) {
+		this.walSequence = walSequence;
+	}
+
+	boolean isBalanceReserved() {
+		return balanceReserved;
+	}
+
+	void setBalanceReserved(boolean balanceReserved) {
+		this.balanceReserved = balanceReserved;
+	}
+
+	boolean isBalanceSpilled() {
+		return balanceSpilled;
+	}
+
+	void setBalanceSpilled(boolean balanceSpilled) {
+		this.balanceSpilled = balanceSpilled;
+	}
+
+	byte getIpCoalesceState() {
+		return ipCoalesceState;
+	}
+
+	void setIpCoalesceState(byte ipCoalesceState) {
+		this.ipCoalesceState = ipCoalesceState;
+	}
+
+	/**
+	 * Reads both the current form and the older one, where data was a plain Map and the
+	 *   IP address was only kept as text.  The serialVersionUID is unchanged so older views
+	 *   (spilled or in flight during an upgrade) still read, default field reading would
+	 *   fail on the Map, so the fields are read by hand.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		ObjectInputStream.GetField fields = in.readFields();
+		entitlementID = fields.get("entitlementID", 0L);
+		productID = fields.get("productID", 0);
+		debitTime = fields.get("debitTime", 0L);
+		userID = fields.get("userID", 0);
+		Object storedData = fields.get("data", null);
+		if(storedData == null || storedData instanceof CompactDataMap){
+			data = (CompactDataMap) storedData;
+		}else if(storedData instanceof Map){
+			data = CompactDataMap.copyOf((Map<String, String>) storedData);
+		}else{
+			throw new InvalidObjectException("Unexpected data type in ProductView: " + storedData.getClass().getName());
+		}
+		String address = (String) fields.get("ipAddress", "");
+		if(fields.defaulted("ipVersion")){
+			//Older form, only the text address was stored
+			setIpAddress(address);
+		}else{
+			ipAddress = address;
+			ipVersion = fields.get("ipVersion", (byte) IpAddressParser.NONE);
+			ipv4 = fields.get("ipv4", 0);
+			ipv6High = fields.get("ipv6High", 0L);
+			ipv6Low = fields.get("ipv6Low", 0L);
+		}
+	}
+
 	public long getEntitlementID() {
 		return entitlementID;
 	}
@@ -173,7 +254,11 @@ public class ProductView implements Serializable {
 		result = prime * result
 				+ (int) (entitlementID ^ (entitlementID >>> 32));
 		result = prime * result + productID;
-		result = prime * result + getIpAddress().hashCode();
+		result = prime * result + ipVersion;
+		result = prime * result + ipv4;
+		result = prime * result + (int) (ipv6High ^ (ipv6High >>> 32));
+		result = prime * result + (int) (ipv6Low ^ (ipv6Low >>> 32));
+		result = prime * result + ((ipAddress == null) ? 0 : ipAddress.hashCode());
 		result = prime * result + getData().hashCode();
 		result = prime * result + userID;
 		return result;
@@ -196,19 +281,117 @@ public class ProductView implements Serializable {
 			return false;
 		if (userID != other.userID)
 			return false;
-		if(!getData().equals(other.getData()))
+		if (ipVersion != other.ipVersion || ipv4 != other.ipv4
+				|| ipv6High != other.ipv6High || ipv6Low != other.ipv6Low)
 			return false;
-		if(!getIpAddress().equals(other.getIpAddress()))
+		if(ipAddress == null ? other.ipAddress != null : !ipAddress.equals(other.ipAddress))
+			return false;
+		if(!getData().equals(other.getData()))
 			return false;
 		return true;
 	}
 
+	/**
+	 * Returns the IP address as text.  Parsed addresses come back in canonical form,
+	 *   (no leading zeros, lowercase compressed IPv6), anything that couldn't be parsed
+	 *   comes back exactly as it was set.
+	 * @return
+	 */
 	public String getIpAddress() {
-		return ipAddress;
+		switch(ipVersion){
+		case IpAddressParser.IPV4:
+			return IpAddressParser.appendIPv4(new StringBuilder(15), ipv4).toString();
+		case IpAddressParser.IPV6:
+			return IpAddressParser.appendIPv6(new StringBuilder(39), ipv6High, ipv6Low).toString();
+		default:
+			return (ipAddress == null) ? "" : ipAddress;
+		}
 	}
 
+	/**
+	 * Sets the IP address, storing IPv4 and IPv6 addresses in packed numeric form
+	 * @param ipAddress
+	 */
 	public void setIpAddress(String ipAddress) {
-		this.ipAddress = ipAddress;
+		IpAddressParser parser = IpAddressParser.forCurrentThread();
+		switch(parser.parse(ipAddress)){
+		case IpAddressParser.IPV4:
+			setIPv4Address(parser.getIPv4());
+			break;
+		case IpAddressParser.IPV6:
+			setIPv6Address(parser.getIPv6High(), parser.getIPv6Low());
+			break;
+		default:
+			this.ipVersion = IpAddressParser.NONE;
+			this.ipv4 = 0;
+			this.ipv6High = 0L;
+			this.ipv6Low = 0L;
+			this.ipAddress = ipAddress;
+		}
+	}
+
+	public ProductView setIPv4Address(int address) {
+		this.ipVersion = IpAddressParser.IPV4;
+		this.ipv4 = address;
+		this.ipv6High = 0L;
+		this.ipv6Low = 0L;
+		this.ipAddress = null;
+		return this;
+	}
+
+	public ProductView setIPv6Address(long high, long low) {
+		this.ipVersion = IpAddressParser.IPV6;
+		this.ipv4 = 0;
+		this.ipv6High = high;
+		this.ipv6Low = low;
+		this.ipAddress = null;
+		return this;
+	}
+
+	/**
+	 * @return {@link IpAddressParser#IPV4}, {@link IpAddressParser#IPV6}, or
+	 *   {@link IpAddressParser#NONE} if the address was not parseable
+	 */
+	public int getIpVersion() {
+		return ipVersion;
+	}
+
+	public int getIPv4Address() {
+		return ipv4;
+	}
+
+	public long getIPv6AddressHigh() {
+		return ipv6High;
+	}
+
+	public long getIPv6AddressLow() {
+		return ipv6Low;
+	}
+
+	/**
+	 * Returns the address in network byte order (4 bytes for IPv4, 16 for IPv6),
+	 *   suitable for a binary IP column, or null if the address was not parseable
+	 * @return
+	 */
+	public byte[] getIpAddressBytes() {
+		byte[] ret;
+		switch(ipVersion){
+		case IpAddressParser.IPV4:
+			ret = new byte[4];
+			for(int i = 0; i < 4; i++){
+				ret[i] = (byte) (ipv4 >>> (24 - 8 * i));
+			}
+			return ret;
+		case IpAddressParser.IPV6:
+			ret = new byte[16];
+			for(int i = 0; i < 8; i++){
+				ret[i] = (byte) (ipv6High >>> (56 - 8 * i));
+				ret[i + 8] = (byte) (ipv6Low >>> (56 - 8 * i));
+			}
+			return ret;
+		default:
+			return null;
+		}
 	}
 
 }
@@ -0,0 +1,439 @@
+package com.cwilliams.commerce;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+/**
+ * In-memory stand-in for the database behind SMDBPool, for load testing the AccessLoggerQueue
+ *   without a real server.  It doesn't run any SQL: it counts the rows each INSERT/UPDATE touches
+ *   per table, applying them on commit and dropping them on rollback.
+ * Tables given a row key with {@link #setRowKey} also remember the key of every row inserted, so
+ *   an UPDATE whose WHERE is exactly that key reports how many committed rows it matched, 0 for
+ *   a row that hasn't been inserted.  Any other UPDATE reports 1 row.
+ *
+ * Faults can be switched on while it's running: slow commits, a random commit failure rate,
+ *   randomly dropped connections, and a full outage where every commit fails.
+ * @author corey
+ *
+ */
+public class StandInDatabase {
+	//Units returned for any SELECT, so balance lookups always find something
+	private static final long STAND_IN_UNITS = 1000000;
+	private static final Pattern INSERT_SQL = Pattern.compile("(?is)INSERT\\s+INTO\\s+(\\S+)\\s*\\((.*?)\\)\\s*VALUES\\s*\\((.*)\\)\\s*");
+	private static final Pattern UPDATE_SQL = Pattern.compile("(?is)UPDATE\\s+(\\S+)\\s+SET\\s+(.*)\\s+WHERE\\s+(.*)");
+
+	private volatile long commitDelayMs = 0;
+	private volatile double commitFailureRate = 0;
+	private volatile double connectionDropRate = 0;
+	private volatile boolean outage = false;
+
+	private final ConcurrentMap<String, AtomicLong> committedRows = new ConcurrentHashMap<String, AtomicLong>();
+	//Table -> key columns, see setRowKey
+	private final ConcurrentMap<String, List<String>> rowKeys = new ConcurrentHashMap<String, List<String>>();
+	//Table and key values of committed rows in keyed tables -> number of rows with that key
+	private final ConcurrentMap<String, AtomicLong> keyedRows = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong unmatchedUpdates = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong rollbacks = new AtomicLong();
+	private final AtomicLong failedCommits = new AtomicLong();
+	private final AtomicLong droppedConnections = new AtomicLong();
+	private final AtomicLong openConnections = new AtomicLong();
+
+	private final DataSource dataSource;
+
+	public StandInDatabase(){
+		dataSource = (DataSource) proxy(DataSource.class, new InvocationHandler(){
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+				if(method.getName().equals("getConnection")){
+					if(outage){
+						throw new SQLException("Stand-in database is down");
+					}
+					openConnections.incrementAndGet();
+					return proxy(Connection.class, new StandInConnection());
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static Object proxy(Class<?> iface, InvocationHandler handler){
+		return Proxy.newProxyInstance(StandInDatabase.class.getClassLoader(), new Class<?>[]{iface}, handler);
+	}
+
+	/**
+	 * Zero/false/null for whatever JDBC method we don't care about
+	 */
+	private static Object defaultValue(Method method){
+		Class<?> type = method.getReturnType();
+		if(type == boolean.class){
+			return Boolean.FALSE;
+		}
+		if(type == int.class){
+			return Integer.valueOf(0);
+		}
+		if(type == long.class){
+			return Long.valueOf(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Table name from "INSERT INTO X ...", or "UPDATE X" from "UPDATE X ...", so inserted and
+	 *   updated rows are counted separately
+	 */
+	private static String tableFor(String sql){
+		String[] words = sql.trim().split("\\s+");
+		if(words.length > 2 && words[0].equalsIgnoreCase("INSERT")){
+			return words[2].toUpperCase();
+		}
+		if(words.length > 1 && words[0].equalsIgnoreCase("UPDATE")){
+			return "UPDATE " + words[1].toUpperCase();
+		}
+		return null;
+	}
+
+	private static int countParameters(String sql){
+		int count = 0;
+		for(int i = 0; i < sql.length(); i++){
+			if(sql.charAt(i) == '?'){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Parameter index of each of the table's key columns in sql, or null if sql isn't an INSERT,
+	 *   or an UPDATE whose WHERE is just "column = ?" for each key column
+	 */
+	private int[] keyParameters(String sql){
+		Matcher insert = INSERT_SQL.matcher(sql);
+		Matcher update = UPDATE_SQL.matcher(sql);
+		Map<String, Integer> parameters = new HashMap<String, Integer>();
+		String table;
+		if(insert.matches()){
+			table = insert.group(1).toUpperCase();
+			String[] columns = insert.group(2).split(",");
+			String[] values = insert.group(3).split(",");
+			int parameter = 0;
+			for(int i = 0; i < columns.length && i < values.length; i++){
+				if(values[i].trim().equals("?")){
+					parameters.put(columns[i].trim().toUpperCase(), ++parameter);
+				}
+			}
+		}else if(update.matches()){
+			table = update.group(1).toUpperCase();
+			int parameter = countParameters(update.group(2));
+			String[] conditions = update.group(3).trim().split("(?i)\\s+AND\\s+");
+			for(int i = 0; i < conditions.length; i++){
+				String[] sides = conditions[i].split("=");
+				if(sides.length != 2 || !sides[1].trim().equals("?")){
+					return null;
+				}
+				parameters.put(sides[0].trim().toUpperCase(), ++parameter);
+			}
+		}else{
+			return null;
+		}
+		List<String> key = rowKeys.get(table);
+		if(key == null || (update.matches() && parameters.size() != key.size())){
+			return null;
+		}
+		int[] ret = new int[key.size()];
+		for(int i = 0; i < ret.length; i++){
+			Integer parameter = parameters.get(key.get(i));
+			if(parameter == null){
+				return null;
+			}
+			ret[i] = parameter;
+		}
+		return ret;
+	}
+
+	private long keyedRowCount(String key){
+		AtomicLong rows = keyedRows.get(key);
+		return (rows != null) ? rows.get() : 0;
+	}
+
+	private class StandInConnection implements InvocationHandler{
+		//Rows written in the current transaction, per table
+		private final Map<String, long[]> pendingRows = new HashMap<String, long[]>();
+		//Keys of rows inserted into keyed tables in the current transaction
+		private final List<String> pendingKeys = new ArrayList<String>();
+		private boolean closed = false;
+		private boolean dropped = false;
+
+		private void checkOpen() throws SQLException{
+			if(dropped){
+				throw new SQLException("Stand-in connection was dropped");
+			}
+			if(closed){
+				throw new SQLException("Stand-in connection is closed");
+			}
+		}
+
+		private void addPending(String table, long rows) throws SQLException{
+			checkOpen();
+			if(connectionDropRate > 0 && ThreadLocalRandom.current().nextDouble() < connectionDropRate){
+				dropped = true;
+				droppedConnections.incrementAndGet();
+				pendingRows.clear();
+				pendingKeys.clear();
+				throw new SQLException("Stand-in connection reset");
+			}
+			if(table != null){
+				long[] count = pendingRows.get(table);
+				if(count == null){
+					pendingRows.put(table, new long[]{rows});
+				}else{
+					count[0] += rows;
+				}
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+			String name = method.getName();
+			if(name.equals("prepareStatement")){
+				checkOpen();
+				return StandInDatabase.proxy(PreparedStatement.class, new StandInStatement(this, (String) args[0]));
+			}else if(name.equals("commit")){
+				checkOpen();
+				if(commitDelayMs > 0){
+					Thread.sleep(commitDelayMs);
+				}
+				if(outage || (commitFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < commitFailureRate)){
+					failedCommits.incrementAndGet();
+					throw new SQLException("Stand-in commit failed");
+				}
+				Iterator<Entry<String, long[]>> rowIter = pendingRows.entrySet().iterator();
+				while(rowIter.hasNext()){
+					Entry<String, long[]> rows = rowIter.next();
+					AtomicLong total = committedRows.get(rows.getKey());
+					if(total == null){
+						committedRows.putIfAbsent(rows.getKey(), new AtomicLong());
+						total = committedRows.get(rows.getKey());
+					}
+					total.addAndGet(rows.getValue()[0]);
+				}
+				pendingRows.clear();
+				Iterator<String> keyIter = pendingKeys.iterator();
+				while(keyIter.hasNext()){
+					String key = keyIter.next();
+					AtomicLong total = keyedRows.get(key);
+					if(total == null){
+						keyedRows.putIfAbsent(key, new AtomicLong());
+						total = keyedRows.get(key);
+					}
+					total.incrementAndGet();
+				}
+				pendingKeys.clear();
+				commits.incrementAndGet();
+				return null;
+			}else if(name.equals("rollback")){
+				checkOpen();
+				pendingRows.clear();
+				pendingKeys.clear();
+				rollbacks.incrementAndGet();
+				return null;
+			}else if(name.equals("close")){
+				if(!closed){
+					closed = true;
+					openConnections.decrementAndGet();
+				}
+				return null;
+			}else if(name.equals("isClosed")){
+				return Boolean.valueOf(closed || dropped);
+			}else if(name.equals("setAutoCommit")){
+				checkOpen();
+				return null;
+			}
+			return defaultValue(method);
+		}
+	}
+
+	private class StandInStatement implements InvocationHandler{
+		private final StandInConnection conn;
+		private final String table;
+		//Parameter index of each key column, null unless this writes to or updates a keyed table
+		private final int[] keyParameters;
+		private final Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+		//Row keys of the batched statements, null entries for statements that aren't keyed
+		private final List<String> batch = new ArrayList<String>();
+
+		StandInStatement(StandInConnection conn, String sql){
+			this.conn = conn;
+			this.table = tableFor(sql);
+			this.keyParameters = keyParameters(sql);
+		}
+
+		/**
+		 * Table and key values from the current parameters, null if any of them is NULL, since
+		 *   that never matches anything
+		 */
+		private String currentKey(){
+			if(keyParameters == null){
+				return null;
+			}
+			//Inserts and updates of a table share keys, so without tableFor's "UPDATE " prefix
+			StringBuilder key = new StringBuilder(table.startsWith("UPDATE ") ? table.substring(7) : table);
+			for(int i = 0; i < keyParameters.length; i++){
+				Object value = parameters.get(keyParameters[i]);
+				if(value == null){
+					return null;
+				}
+				key.append('\u0001').append(value);
+			}
+			return key.toString();
+		}
+
+		/**
+		 * Records an inserted row's key, or returns how many rows an update with the key matches
+		 */
+		private int rowsFor(String key){
+			if(keyParameters == null || !table.startsWith("UPDATE ")){
+				if(key != null){
+					conn.pendingKeys.add(key);
+				}
+				return 1;
+			}
+			long rows = (key == null) ? 0 : keyedRowCount(key);
+			if(rows == 0){
+				unmatchedUpdates.incrementAndGet();
+			}
+			return (int) rows;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+			String name = method.getName();
+			if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer){
+				parameters.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+				return null;
+			}else if(name.equals("execute") || name.equals("executeUpdate")){
+				conn.checkOpen();
+				int rows = rowsFor(currentKey());
+				conn.addPending(table, rows);
+				return (method.getReturnType() == int.class) ? Integer.valueOf(rows) : Boolean.FALSE;
+			}else if(name.equals("addBatch")){
+				batch.add(currentKey());
+				return null;
+			}else if(name.equals("executeBatch")){
+				conn.checkOpen();
+				int[] ret = new int[batch.size()];
+				long rows = 0;
+				for(int i = 0; i < ret.length; i++){
+					ret[i] = rowsFor(batch.get(i));
+					rows += ret[i];
+				}
+				conn.addPending(table, rows);
+				batch.clear();
+				return ret;
+			}else if(name.equals("executeQuery")){
+				conn.checkOpen();
+				return StandInDatabase.proxy(ResultSet.class, new InvocationHandler(){
+					private boolean read = false;
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+						if(method.getName().equals("next")){
+							boolean hasRow = !read;
+							read = true;
+							return Boolean.valueOf(hasRow);
+						}else if(method.getName().equals("getLong")){
+							return Long.valueOf(STAND_IN_UNITS);
+						}
+						return defaultValue(method);
+					}
+				});
+			}
+			return defaultValue(method);
+		}
+	}
+
+	public DataSource getDataSource(){
+		return dataSource;
+	}
+
+	public void setCommitDelayMs(long commitDelayMs){
+		this.commitDelayMs = commitDelayMs;
+	}
+	public void setCommitFailureRate(double commitFailureRate){
+		this.commitFailureRate = commitFailureRate;
+	}
+	public void setConnectionDropRate(double connectionDropRate){
+		this.connectionDropRate = connectionDropRate;
+	}
+	public void setOutage(boolean outage){
+		this.outage = outage;
+	}
+
+	/**
+	 * Rows inserted into table and committed so far
+	 */
+	public long getCommittedRows(String table){
+		AtomicLong rows = committedRows.get(table.toUpperCase());
+		return (rows != null) ? rows.get() : 0;
+	}
+	/**
+	 * Updates to rows of table committed so far
+	 */
+	public long getUpdatedRows(String table){
+		AtomicLong rows = committedRows.get("UPDATE " + table.toUpperCase());
+		return (rows != null) ? rows.get() : 0;
+	}
+	/**
+	 * Remembers the key of every row inserted into table from now on, so updates of it on exactly
+	 *   those columns only match rows that were inserted
+	 * @param table
+	 * @param columns
+	 */
+	public void setRowKey(String table, String... columns){
+		List<String> key = new ArrayList<String>();
+		for(int i = 0; i < columns.length; i++){
+			key.add(columns[i].toUpperCase());
+		}
+		rowKeys.put(table.toUpperCase(), key);
+	}
+	/**
+	 * Updates on a row key that matched no row
+	 */
+	public long getUnmatchedUpdates(){
+		return unmatchedUpdates.get();
+	}
+	public long getCommits(){
+		return commits.get();
+	}
+	public long getRollbacks(){
+		return rollbacks.get();
+	}
+	public long getFailedCommits(){
+		return failedCommits.get();
+	}
+	public long getDroppedConnections(){
+		return droppedConnections.get();
+	}
+	public long getOpenConnections(){
+		return openConnections.get();
+	}
+}
@@ -0,0 +1,160 @@
+package com.cwilliams.commerce;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counts committed views per productID/userID in tumbling time windows (by debit time), and
+ *   writes one ENTITLEMENTS_ROLLUP row per product/user per window once the window closes,
+ *   so reporting doesn't have to GROUP BY over ENTITLEMENTS_LOG.
+ *
+ * A window is flushed once WINDOW_MS + LATENESS_MS has passed since it started.  Views that
+ *   show up after their window was flushed (replays of the error file, for example) go into a
+ *   fresh copy of the window and get their own rollup row, so reports should SUM(VIEWS).
+ * Counts only live in memory until flushed, ENTITLEMENTS_LOG is still the record of truth.
+ *   {@link flushAllWindows} writes out the open windows early on shutdown, a crash loses them.
+ * @author corey
+ *
+ */
+public class ViewAggregator {
+	private static long WINDOW_MS = 300000;
+	private static long LATENESS_MS = 60000;
+
+	private final static Log logger = LogFactory.getLog(ViewAggregator.class);
+
+	//Window start time -> counts keyed by productID/userID
+	private final TreeMap<Long, LongIntCounterMap> windows = new TreeMap<Long, LongIntCounterMap>();
+
+	static long packKey(int productID, int userID){
+		return ((long) productID << 32) | (userID & 0xFFFFFFFFL);
+	}
+
+	static int productIDFromKey(long key){
+		return (int) (key >>> 32);
+	}
+
+	static int userIDFromKey(long key){
+		return (int) key;
+	}
+
+	/**
+	 * Counts a chunk of views that has just been committed
+	 * @param views
+	 */
+	public synchronized void addViews(Collection<ProductView> views){
+		Iterator<ProductView> viewIter = views.iterator();
+		while(viewIter.hasNext()){
+			ProductView curView = viewIter.next();
+			long windowStart = curView.getDebitTime() - Math.floorMod(curView.getDebitTime(), WINDOW_MS);
+			LongIntCounterMap counts = windows.get(windowStart);
+			if(counts == null){
+				counts = new LongIntCounterMap();
+				windows.put(windowStart, counts);
+			}
+			counts.add(packKey(curView.getProductID(), curView.getUserID()), 1);
+		}
+	}
+
+	/**
+	 * Whether any window closed before now, so callers can skip getting a connection when there's nothing to flush
+	 * @param now
+	 * @return
+	 */
+	public synchronized boolean hasClosedWindows(long now){
+		return !windows.isEmpty() && windows.firstKey() + WINDOW_MS + LATENESS_MS <= now;
+	}
+
+	/**
+	 * Writes out and forgets every window that closed before now, in its own transaction on conn.
+	 * If the insert fails the windows are kept, and retried on the next call.
+	 * @param conn
+	 * @param now
+	 * @return the number of rollup rows written
+	 */
+	public int flushClosedWindows(Connection conn, long now){
+		TreeMap<Long, LongIntCounterMap> closed = new TreeMap<Long, LongIntCounterMap>();
+		synchronized(this){
+			while(!windows.isEmpty() && windows.firstKey() + WINDOW_MS + LATENESS_MS <= now){
+				Entry<Long, LongIntCounterMap> window = windows.pollFirstEntry();
+				closed.put(window.getKey(), window.getValue());
+			}
+		}
+		if(closed.isEmpty()){
+			return 0;
+		}
+		try{
+			return writeRollups(conn, closed);
+		}catch(SQLException e){
+			logger.error(String.format("Unable to write view rollups, will retry: %s", e.getMessage()));
+			e.printStackTrace();
+			//Put the counts back, merging with anything that arrived for those windows since
+			synchronized(this){
+				Iterator<Entry<Long, LongIntCounterMap>> windowIter = closed.entrySet().iterator();
+				while(windowIter.hasNext()){
+					Entry<Long, LongIntCounterMap> window = windowIter.next();
+					LongIntCounterMap current = windows.get(window.getKey());
+					if(current != null){
+						window.getValue().addAll(current);
+					}
+					windows.put(window.getKey(), window.getValue());
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes out and forgets every window, closed or not, for shutdown.  Views for those windows
+	 *   that show up later (after a restart) get rollup rows of their own.
+	 * @param conn
+	 * @return false if the insert failed, and counts are still held
+	 */
+	public boolean flushAllWindows(Connection conn){
+		flushClosedWindows(conn, Long.MAX_VALUE);
+		synchronized(this){
+			return windows.isEmpty();
+		}
+	}
+
+	private static int writeRollups(Connection conn, TreeMap<Long, LongIntCounterMap> closed) throws SQLException{
+		final String insertRollupSql = "INSERT INTO ENTITLEMENTS_ROLLUP (WINDOW_START, PRODUCT_ID, USER_ID, VIEWS) VALUES (?, ?, ?, ?)";
+		int rows = 0;
+		try{
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement(insertRollupSql);
+			Iterator<Entry<Long, LongIntCounterMap>> windowIter = closed.entrySet().iterator();
+			while(windowIter.hasNext()){
+				Entry<Long, LongIntCounterMap> window = windowIter.next();
+				Timestamp windowStart = new Timestamp(window.getKey());
+				LongIntCounterMap counts = window.getValue();
+				for(int slot = counts.nextSlot(0); slot >= 0; slot = counts.nextSlot(slot + 1)){
+					long key = counts.keyAt(slot);
+					stmt.setTimestamp(1, windowStart);
+					stmt.setInt(2, productIDFromKey(key));
+					stmt.setInt(3, userIDFromKey(key));
+					stmt.setInt(4, counts.countAt(slot));
+					stmt.addBatch();
+					rows++;
+				}
+			}
+			stmt.executeBatch();
+			stmt.close();
+			conn.commit();
+			conn.setAutoCommit(true);
+		}catch(SQLException e){
+			conn.rollback();
+			conn.setAutoCommit(true);
+			throw e;
+		}
+		return rows;
+	}
+}